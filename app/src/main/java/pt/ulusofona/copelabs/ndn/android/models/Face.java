@@ -20,7 +20,12 @@ import pt.ulusofona.copelabs.ndn.android.ui.fragment.Table;
 
 /** The model class used to represent Faces within the Android app.
  * A face has 7 important properties in NDN; Face ID, Local URI, Remote URI, Scope, Persistency, Link Type and State
- * Beside those, our OppFaces include a packet queue so we also include the number of pending packets.
+ * Beside those, our OppFaces include a packet queue so we also include the number of pending packets, along with the
+ * number of failed sends retried, the total time the queue was stalled by failures, the number of bytes of expired
+ * packets dropped from the queue instead of being sent, the number of bytes queued and the packets dropped to keep the
+ * queue within its memory budget or its queuing delay bounded. The channel attached to an OppFace while it is UP adds
+ * the number of transmissions it has yet to perform, the fraction of time its sender spends transmitting, and the size
+ * of the batches it writes relative to their original size along with the CPU time spent compressing them.
  * @version 1.0
  * @author Seweryn Dynerowicz (COPELABS/ULHT)
  */
@@ -32,6 +37,16 @@ public class Face implements Table.Entry, Comparable<Face> {
     private int linkType;
     private int state;
 	private int queueSize;
+	private long retries;
+	private long stallTime;
+	private long expiredBytes;
+	private long queuedBytes;
+	private long droppedPackets;
+	private long droppedBytes;
+	private int channelQueueDepth;
+	private double channelUtilisation;
+	private double compressionRatio = 1.0;
+	private long compressionCpuTime;
 
 	public long getFaceId() {
 		return faceId;
@@ -46,8 +61,14 @@ public class Face implements Table.Entry, Comparable<Face> {
 	 * @param linkType the Link Type of the Face
 	 * @param state the Status of the Face
 	 * @param queueSize the number of packets pending in the Face's queue
+	 * @param retries the number of failed sends retried by the Face
+	 * @param stallTime the time in milliseconds during which the Face's queue was stalled by failed sends
+	 * @param expiredBytes the number of bytes of expired packets dropped from the Face's queue
+	 * @param queuedBytes the number of bytes pending in the Face's queue
+	 * @param droppedPackets the number of packets dropped by the drop policy of the Face's queue
+	 * @param droppedBytes the number of bytes of the packets dropped by the drop policy of the Face's queue
 	 */
-	public Face(long faceId, String remoteUri, int scope, int persistency, int linkType, int state, int queueSize) {
+	public Face(long faceId, String remoteUri, int scope, int persistency, int linkType, int state, int queueSize, long retries, long stallTime, long expiredBytes, long queuedBytes, long droppedPackets, long droppedBytes) {
 		this.faceId = faceId;
 		this.remoteUri = remoteUri;
 		this.scope = scope;
@@ -55,6 +76,41 @@ public class Face implements Table.Entry, Comparable<Face> {
 		this.linkType = linkType;
 		this.state = state;
         this.queueSize = queueSize;
+        this.retries = retries;
+        this.stallTime = stallTime;
+        this.expiredBytes = expiredBytes;
+        this.queuedBytes = queuedBytes;
+        this.droppedPackets = droppedPackets;
+        this.droppedBytes = droppedBytes;
+	}
+
+	public long getRetries() { return retries; }
+	public long getStallTime() { return stallTime; }
+	public long getExpiredBytes() { return expiredBytes; }
+	public long getQueuedBytes() { return queuedBytes; }
+	public long getDroppedPackets() { return droppedPackets; }
+	public long getDroppedBytes() { return droppedBytes; }
+	public int getChannelQueueDepth() { return channelQueueDepth; }
+	public double getChannelUtilisation() { return channelUtilisation; }
+	public double getCompressionRatio() { return compressionRatio; }
+	public long getCompressionCpuTime() { return compressionCpuTime; }
+
+	/** Complete this Face with the statistics of the channel attached to it.
+	 * @param queueDepth the number of transmissions waiting to be performed by the channel
+	 * @param utilisation the fraction of time the sender of the channel spent transmitting
+	 */
+	public void setChannelStats(int queueDepth, double utilisation) {
+		this.channelQueueDepth = queueDepth;
+		this.channelUtilisation = utilisation;
+	}
+
+	/** Complete this Face with the statistics of the compression performed by the channel attached to it.
+	 * @param ratio the size of the batches written to the peer relative to their original size
+	 * @param cpuTime the CPU time spent compressing the batches written to the peer, in nanoseconds
+	 */
+	public void setCompressionStats(double ratio, long cpuTime) {
+		this.compressionRatio = ratio;
+		this.compressionCpuTime = cpuTime;
 	}
 
 	/* Static names to be used for pretty-printing the raw data obtained from the daemon.
@@ -104,7 +160,7 @@ public class Face implements Table.Entry, Comparable<Face> {
 
 		// Append the queue size to the RemoteURI in the case of an Opportunistic Face.
 		if(this.remoteUri.startsWith("opp://"))
-			((TextView) entry.findViewById(R.id.remoteUri)).setText("opp://..." + remoteUri.substring(30) + (queueSize > 0 ? " [" + queueSize + "]" : ""));
+			((TextView) entry.findViewById(R.id.remoteUri)).setText("opp://..." + remoteUri.substring(30) + (queueSize > 0 ? " [" + queueSize + "]" : "") + (retries > 0 ? " r" + retries : "") + (droppedPackets > 0 ? " d" + droppedPackets : "") + (channelQueueDepth > 0 ? " t" + channelQueueDepth : "") + (channelUtilisation > 0 ? String.format(Locale.getDefault(), " u%.0f%%", channelUtilisation * 100) : "") + (compressionRatio < 1.0 ? String.format(Locale.getDefault(), " z%.0f%%", compressionRatio * 100) : ""));
 		else
 			((TextView) entry.findViewById(R.id.remoteUri)).setText(remoteUri);
 
@@ -7,13 +7,12 @@
  */
 package pt.ulusofona.copelabs.ndn.android.umobile;
 
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 
 class OpportunisticChannel {
     private static final String TAG = OpportunisticChannel.class.getSimpleName();
@@ -24,6 +23,18 @@ class OpportunisticChannel {
     private final String mUuid;
     private final String mHost;
     private final int mPort;
+    private final OpportunisticConnectionPool.Connection mConnection;
+    private final OpportunisticSender mSender;
+    // The OpportunisticFaceManager is only manipulated from the main thread.
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Ring of the Face, shared with the c++ code, and the reference to it held by this channel. The ring is released
+    // once the sender terminated, as the Face may be destroyed while transmissions are still queued.
+    private ByteBuffer mRing;
+    private long mRingHandle;
+    private boolean mRingReleased = false;
+    // Views over the ring, only used by the sender thread.
+    private final ByteBuffer[] mRegion = new ByteBuffer[2];
+    private ByteBuffer mRegionRing;
 
     /** Main constructor
      * @param daemon Binder to the ForwardingDaemon
@@ -32,8 +43,9 @@ class OpportunisticChannel {
      * @param faceId FaceId of the Face this channel will be attached to
      * @param host IP address of the corresponding device
      * @param port Port number of the corresponding device
+     * @param pool Pool from which the connection to the corresponding device is obtained
      */
-    OpportunisticChannel(OpportunisticDaemon.NodBinder daemon, OpportunisticFaceManager oppFaceMgr, String uuid, long faceId, String host, int port) {
+    OpportunisticChannel(OpportunisticDaemon.NodBinder daemon, OpportunisticFaceManager oppFaceMgr, String uuid, long faceId, String host, int port, OpportunisticConnectionPool pool) {
         Log.d(TAG, "Creating OpportunisticChannel for " + host + ":" + port);
         mDaemon = daemon;
         mOppFaceManager = oppFaceMgr;
@@ -41,60 +53,155 @@ class OpportunisticChannel {
         mUuid = uuid;
         mHost = host;
         mPort = port;
+        mConnection = pool.obtain(uuid, host, port);
+        mSender = new OpportunisticSender(uuid, new Runnable() {
+            @Override
+            public void run() {
+                releaseRing();
+            }
+        });
+    }
+
+    /** Called by the c++ code when the Face is brought up to share the ring into which it copies outgoing packets.
+     * Not called in native sockets mode, where the Face sends its packets by itself.
+     * @param ring direct buffer mapping the ring of the Face
+     * @param handle reference to the ring held by this channel until it is released
+     */
+    synchronized void attachRing(ByteBuffer ring, long handle) {
+        if(mRingReleased) {
+            mDaemon.releaseRing(handle);
+            return;
+        }
+        mRing = ring;
+        mRingHandle = handle;
+    }
+
+    /** Called by the sender once it terminated; the ring is no longer read. */
+    private synchronized void releaseRing() {
+        mRingReleased = true;
+        if(mRing != null) {
+            mRing = null;
+            mDaemon.releaseRing(mRingHandle);
+        }
     }
 
-    // Called by the c++ code to send a packet.
-    void send(byte[] buffer) {
-        Log.d(TAG, "Attempting to send " + buffer.length + " bytes through UUID " + mUuid + " to " + mHost + ":" + mPort);
-        ConnectionTask ct = new ConnectionTask(mHost, mPort, buffer);
-        ct.execute();
+    /** Called by the c++ code to send a batch of packets. The packets are read directly from the ring of the Face.
+     * Transmissions are performed in order by the sender of this channel.
+     * @param firstSequence sequence number of the first packet of the batch; the others follow consecutively
+     * @param count number of packets in the batch
+     * @param start position in the ring of the first byte of the batch
+     * @param length number of bytes of the batch, which may wrap around the end of the ring
+     * @param datagram whether the batch is a single packet to be sent as a UDP datagram
+     * @return false if the channel was closed, in which case the batch is not sent and its completion not notified
+     */
+    boolean send(long firstSequence, int count, int start, int length, boolean datagram) {
+        Log.d(TAG, "Attempting to send #" + firstSequence + " (" + count + " packets) of " + length + " bytes through UUID " + mUuid + " to " + mHost + ":" + mPort + (datagram ? " (UDP)" : ""));
+        boolean submitted = mSender.submit(new Transmission(mRing, firstSequence, count, start, length, datagram));
+        if(!submitted)
+            Log.d(TAG, "Channel to " + mUuid + " is closed. Ignoring #" + firstSequence);
+        return submitted;
     }
 
-    /** ConnectionTask is used to perform a transfer
+    /** Release the resources of this channel. Transmissions already queued are still performed and notified, after
+     * which the ring is released.
      */
-    private class ConnectionTask extends AsyncTask<Void, Void, Boolean> {
-        private String mHost;
-        private int mPort;
-        private byte[] mBuffer;
-
-        ConnectionTask(String host, int port, byte[] buffer) {
-            mHost = host;
-            mPort = port;
-            mBuffer = buffer;
+    void close() {
+        Log.d(TAG, "Closing channel to " + mUuid + " queueDepth=" + mSender.getQueueDepth() + " utilisation=" + mSender.getUtilisation() + " " + mConnection.getCompressor());
+        mSender.shutdown();
+    }
+
+    /** @return the FaceId of the Face this channel is attached to */
+    long getFaceId() {
+        return mFaceId;
+    }
+
+    /** @return the number of transmissions waiting to be performed by this channel */
+    int getQueueDepth() {
+        return mSender.getQueueDepth();
+    }
+
+    /** @return the fraction of time the sender of this channel spent transmitting */
+    double getUtilisation() {
+        return mSender.getUtilisation();
+    }
+
+    /** @return the size of the batches written to the peer relative to their original size */
+    double getCompressionRatio() {
+        return mConnection.getCompressor().getRatio();
+    }
+
+    /** @return the CPU time spent compressing the batches written to the peer, in nanoseconds */
+    long getCompressionCpuTime() {
+        return mConnection.getCompressor().getCpuTime();
+    }
+
+    /** Compute the (at most two) regions of the ring covered by a batch. Only called from the sender thread, which
+     * reuses the same views for every batch.
+     * @param ring the ring in which the batch is stored
+     * @param start position of the first byte of the batch
+     * @param length number of bytes of the batch
+     * @return views over the bytes of the batch, in order
+     */
+    private ByteBuffer[] regionOf(ByteBuffer ring, int start, int length) {
+        if(ring != mRegionRing) {
+            mRegion[0] = ring.duplicate();
+            mRegion[1] = ring.duplicate();
+            mRegionRing = ring;
         }
+        int first = Math.min(length, ring.capacity() - start);
+        mRegion[0].clear();
+        mRegion[0].position(start);
+        mRegion[0].limit(start + first);
+        mRegion[1].clear();
+        mRegion[1].limit(length - first);
+        return mRegion;
+    }
 
-        /** Performs the actual transfer of the packet.
-         * @param voids no parameters
-         * @return boolean value reflecting whether the transfer is a success or not
+    /** Transmission is used to perform the transfer of a batch over the pooled connection to the corresponding device,
+     * or of a single packet as a datagram.
+     */
+    private class Transmission implements Runnable {
+        private ByteBuffer mRing;
+        private long mFirstSequence;
+        private int mCount;
+        private int mStart;
+        private int mLength;
+        private boolean mDatagram;
+
+        Transmission(ByteBuffer ring, long firstSequence, int count, int start, int length, boolean datagram) {
+            mRing = ring;
+            mFirstSequence = firstSequence;
+            mCount = count;
+            mStart = start;
+            mLength = length;
+            mDatagram = datagram;
+        }
+
+        /** Performs the actual transfer of the batch with a single gathering write and callbacks into the NDN
+         * Opportunistic Daemon to notify the requesting Face of the outcome of the transfer of each packet.
          */
         @Override
-        protected Boolean doInBackground(Void... voids) {
+        public void run() {
             boolean transferSucceeded;
             try {
-                Socket connection = new Socket();
-                connection.connect(new InetSocketAddress(mHost, mPort));
-                Log.d(TAG, "Connection established to " + connection.toString() + " ? " + connection.isConnected());
-                DataOutputStream dos = new DataOutputStream(connection.getOutputStream());
-                dos.write(mBuffer, 0, mBuffer.length);
-                dos.flush();
-                dos.close();
+                if(mDatagram)
+                    mConnection.writeDatagram(regionOf(mRing, mStart, mLength));
+                else
+                    mConnection.write(regionOf(mRing, mStart, mLength));
                 transferSucceeded = true;
             } catch (IOException e) {
                 Log.d(TAG, "Transfer failed.");
-                mOppFaceManager.bringDownFace(mUuid);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mOppFaceManager.bringDownFace(mUuid);
+                    }
+                });
                 e.printStackTrace();
                 transferSucceeded = false;
             }
-            return transferSucceeded;
-        }
-
-        /** After the task completes, used to callback into the NDN Opportunistic Daemon to notify the
-         * requesting Face of the outcome of the transfer.
-         * @param transferSucceeded success result of the transfer
-         */
-        @Override
-        protected void onPostExecute(Boolean transferSucceeded) {
-            mDaemon.sendComplete(mFaceId, transferSucceeded);
+            for(int i = 0; i < mCount; i++)
+                mDaemon.sendComplete(mFaceId, mFirstSequence + i, transferSucceeded);
         }
     }
 }
@@ -0,0 +1,262 @@
+/**
+ *  @version 1.0
+ * COPYRIGHTS COPELABS/ULHT, LGPLv3.0
+ * Implementation of the compression of the batches of packets transmitted to the other NDN-Opp peers.
+ */
+package pt.ulusofona.copelabs.ndn.android.umobile;
+
+import android.os.Debug;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Batches of packets written on a connection whose peer accepted the compression are split at packet boundaries into
+ * chunks, each of which is replaced by a CompressedBatch(133) { OriginalLength VAR-NUMBER, raw DEFLATE stream of the
+ * chunk }. The chunks are small enough for their CompressedBatch to never exceed the size of an NDN packet, so that no
+ * compression is wasted on a result which cannot be written. Each chunk is compressed on its own so that the receiver
+ * needs no state besides its Inflater. Compression is skipped for chunks which are too small to benefit from it, for
+ * chunks whose bytes look random (already compressed or encrypted content) and whenever the result is not significantly
+ * smaller than the chunk; such chunks are written as they are. An instance is used by a single connection; it keeps
+ * statistics on the ratio achieved and on the CPU time spent.
+ */
+class OpportunisticCompressor {
+    static final int TLV_COMPRESSED_BATCH = 133;
+    // Largest batch compressed, which is also the largest batch restored by the receiver.
+    static final int MAX_BATCH_SIZE = 8 * TlvFraming.MAX_NDN_PACKET_SIZE;
+
+    private static final int MIN_CHUNK_SIZE = 256;
+    // Number of bytes from which the entropy of a batch is estimated.
+    private static final int ENTROPY_SAMPLE_SIZE = 1024;
+    // Estimated entropy, in bits per byte, above which a batch is considered incompressible.
+    private static final double MAX_ENTROPY = 7.2;
+    // Size of the compressed batch relative to the original above which the original is sent instead.
+    private static final double MAX_RATIO = 0.9;
+    // Room for the TLV-TYPE, TLV-LENGTH and OriginalLength of a CompressedBatch.
+    private static final int HEADER_SIZE = 1 + 3 + 5;
+    // Largest chunk, whose CompressedBatch fits in an NDN packet whenever it is significantly smaller than the chunk.
+    // Any packet fits in a chunk.
+    private static final int MAX_CHUNK_SIZE = (int) ((TlvFraming.MAX_NDN_PACKET_SIZE - HEADER_SIZE) / MAX_RATIO);
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final byte[] mInput = new byte[MAX_BATCH_SIZE];
+    private final ByteBuffer mInputBuffer = ByteBuffer.wrap(mInput);
+    private final byte[] mOutput = new byte[MAX_BATCH_SIZE];
+    private final byte[] mStream = new byte[TlvFraming.MAX_NDN_PACKET_SIZE];
+    private final int[] mHistogram = new int[256];
+
+    private long mBatches;
+    private long mCompressedBatches;
+    private long mBytesIn;
+    private long mBytesOut;
+    private long mCpuTime;
+
+    /** @param buffer buffer containing the received bytes
+     * @param offset position of the first byte of a complete TLV
+     * @return whether the TLV is a compressed batch
+     */
+    static boolean isCompressed(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xFF) == TLV_COMPRESSED_BATCH;
+    }
+
+    /** Compress the chunks of a batch of packets which are worth it.
+     * @param buffers bytes of the batch, from the position to the limit of each buffer; they are left untouched
+     * @return the CompressedBatches and the chunks left as they are to write instead of the batch, valid until the next
+     * call, or null if the batch must be written as it is
+     */
+    synchronized ByteBuffer compress(ByteBuffer[] buffers) {
+        long start = Debug.threadCpuTimeNanos();
+        int length = 0;
+        for(ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+        mBatches++;
+        mBytesIn += length;
+
+        ByteBuffer compressed = null;
+        if(length >= MIN_CHUNK_SIZE && length <= MAX_BATCH_SIZE) {
+            int position = 0;
+            for(ByteBuffer buffer : buffers) {
+                buffer.duplicate().get(mInput, position, buffer.remaining());
+                position += buffer.remaining();
+            }
+            try {
+                compressed = compressChunks(length);
+            } catch (TlvFraming.MalformedPacketException e) {
+                // Not a sequence of packets; the peer only has to deliver it as it is.
+                compressed = null;
+            }
+        }
+
+        mBytesOut += (compressed != null) ? compressed.remaining() : length;
+        if(compressed != null)
+            mCompressedBatches++;
+        mCpuTime += Debug.threadCpuTimeNanos() - start;
+        return compressed;
+    }
+
+    /** Restore a batch from a complete CompressedBatch.
+     * @param inflater Inflater used by the receiver, created with nowrap
+     * @param buffer buffer containing the received bytes
+     * @param offset position of the first byte of the CompressedBatch
+     * @param length size of the CompressedBatch, as returned by TlvFraming.frameLength
+     * @param compressed scratch array able to hold the CompressedBatch
+     * @param decompressed array able to hold MAX_BATCH_SIZE bytes, into which the batch is written
+     * @return the size of the batch
+     * @throws TlvFraming.MalformedPacketException if the CompressedBatch is not valid or exceeds the received bytes
+     */
+    static int decompress(Inflater inflater, ByteBuffer buffer, int offset, int length, byte[] compressed, byte[] decompressed) throws TlvFraming.MalformedPacketException {
+        int end = offset + length;
+        long[] number = new long[1];
+        // Skip the TLV-TYPE and TLV-LENGTH of the CompressedBatch itself.
+        int position = TlvFraming.readVarNumber(buffer, offset, end, number);
+        position = TlvFraming.readVarNumber(buffer, position, end, number);
+        position = TlvFraming.readVarNumber(buffer, position, end, number);
+        long originalLength = number[0];
+        if(originalLength < 0)
+            throw new TlvFraming.MalformedPacketException("Invalid OriginalLength " + originalLength);
+        if(originalLength > MAX_BATCH_SIZE)
+            throw new TlvFraming.MalformedPacketException("Compressed batch of " + originalLength + " bytes exceeds " + MAX_BATCH_SIZE);
+        int streamLength = end - position;
+        if(streamLength > compressed.length)
+            throw new TlvFraming.MalformedPacketException("Compressed stream of " + streamLength + " bytes exceeds " + compressed.length);
+
+        ByteBuffer stream = buffer.duplicate();
+        stream.limit(end).position(position);
+        stream.get(compressed, 0, streamLength);
+
+        inflater.reset();
+        inflater.setInput(compressed, 0, streamLength);
+        try {
+            int restored = 0;
+            while(restored < originalLength && !inflater.finished()) {
+                int inflated = inflater.inflate(decompressed, restored, (int) originalLength - restored);
+                if(inflated == 0)
+                    break;
+                restored += inflated;
+            }
+            if(restored != originalLength)
+                throw new TlvFraming.MalformedPacketException("Compressed batch restored to " + restored + " bytes instead of " + originalLength);
+            return restored;
+        } catch (DataFormatException e) {
+            throw new TlvFraming.MalformedPacketException("Invalid compressed batch : " + e.getMessage());
+        }
+    }
+
+    /** @return the size of the batches written relative to their original size, over the lifetime of the connection */
+    synchronized double getRatio() {
+        return mBytesIn == 0 ? 1.0 : (double) mBytesOut / mBytesIn;
+    }
+
+    /** @return the CPU time spent deciding whether to compress and compressing, in nanoseconds */
+    synchronized long getCpuTime() {
+        return mCpuTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "compressed=" + mCompressedBatches + "/" + mBatches + " ratio=" + getRatio() + " cpu=" + (mCpuTime / 1000000) + "ms";
+    }
+
+    /** Split the batch held in mInput into chunks of whole packets, and compress those which are worth it.
+     * @param length size of the batch
+     * @return the chunks, compressed or not, or null if none was compressed
+     * @throws TlvFraming.MalformedPacketException if the batch is not a sequence of complete packets
+     */
+    private ByteBuffer compressChunks(int length) throws TlvFraming.MalformedPacketException {
+        int written = 0;
+        boolean isCompressed = false;
+        int chunkStart = 0;
+        while(chunkStart < length) {
+            int chunkEnd = chunkStart;
+            int packetLength = TlvFraming.frameLength(mInputBuffer, chunkEnd, length);
+            while(packetLength > 0 && chunkEnd + packetLength <= length && chunkEnd + packetLength - chunkStart <= MAX_CHUNK_SIZE) {
+                chunkEnd += packetLength;
+                packetLength = TlvFraming.frameLength(mInputBuffer, chunkEnd, length);
+            }
+            if(chunkEnd == chunkStart)
+                throw new TlvFraming.MalformedPacketException("Incomplete packet in batch");
+
+            int chunkLength = chunkEnd - chunkStart;
+            int compressedLength = 0;
+            if(chunkLength >= MIN_CHUNK_SIZE && estimateEntropy(chunkStart, chunkLength) <= MAX_ENTROPY)
+                compressedLength = deflate(chunkStart, chunkLength, written);
+            if(compressedLength > 0) {
+                written += compressedLength;
+                isCompressed = true;
+            } else {
+                System.arraycopy(mInput, chunkStart, mOutput, written, chunkLength);
+                written += chunkLength;
+            }
+            chunkStart = chunkEnd;
+        }
+        return isCompressed ? ByteBuffer.wrap(mOutput, 0, written) : null;
+    }
+
+    /** Shannon entropy of the bytes of a sample spread over a chunk.
+     * @param offset position of the chunk in mInput
+     * @param length size of the chunk
+     * @return the estimated entropy in bits per byte
+     */
+    private double estimateEntropy(int offset, int length) {
+        int samples = Math.min(length, ENTROPY_SAMPLE_SIZE);
+        int stride = length / samples;
+        Arrays.fill(mHistogram, 0);
+        for(int i = 0; i < samples; i++)
+            mHistogram[mInput[offset + i * stride] & 0xFF]++;
+
+        double entropy = 0;
+        for(int count : mHistogram) {
+            if(count > 0) {
+                double p = (double) count / samples;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    /** Compress a chunk held in mInput into a CompressedBatch written to mOutput.
+     * @param offset position of the chunk in mInput
+     * @param length size of the chunk
+     * @param destination position in mOutput at which the CompressedBatch is written
+     * @return the size of the CompressedBatch, or 0 if it would not be significantly smaller than the chunk
+     */
+    private int deflate(int offset, int length, int destination) {
+        int limit = (int) (length * MAX_RATIO);
+        mDeflater.reset();
+        mDeflater.setInput(mInput, offset, length);
+        mDeflater.finish();
+        int compressedLength = 0;
+        while(!mDeflater.finished() && compressedLength < limit)
+            compressedLength += mDeflater.deflate(mStream, compressedLength, limit - compressedLength);
+        if(!mDeflater.finished())
+            return 0;
+
+        int valueLength = varNumberSize(length) + compressedLength;
+        ByteBuffer encoded = ByteBuffer.wrap(mOutput, destination, mOutput.length - destination);
+        encoded.put((byte) TLV_COMPRESSED_BATCH);
+        putVarNumber(encoded, valueLength);
+        putVarNumber(encoded, length);
+        encoded.put(mStream, 0, compressedLength);
+        return encoded.position() - destination;
+    }
+
+    private static int varNumberSize(int value) {
+        if(value < 253) return 1;
+        else if(value <= 0xFFFF) return 3;
+        else return 5;
+    }
+
+    private static void putVarNumber(ByteBuffer buffer, int value) {
+        if(value < 253)
+            buffer.put((byte) value);
+        else if(value <= 0xFFFF) {
+            buffer.put((byte) 253);
+            buffer.putShort((short) value);
+        } else {
+            buffer.put((byte) 254);
+            buffer.putInt(value);
+        }
+    }
+}
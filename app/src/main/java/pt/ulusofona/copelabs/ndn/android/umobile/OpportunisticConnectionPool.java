@@ -0,0 +1,307 @@
+/**
+ *  @version 1.0
+ * COPYRIGHTS COPELABS/ULHT, LGPLv3.0
+ * Implementation of the pool of long-lived connections used by the Opportunistic Channels to
+ * transmit packets to the other NDN-Opp peers.
+ */
+package pt.ulusofona.copelabs.ndn.android.umobile;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/** The connection pool keeps at most one TCP connection open per NDN-Opp peer (identified by its UUID) so that
+ * consecutive packets sent to the same peer do not each pay for a TCP handshake. Connections are established
+ * lazily upon the first write and re-established transparently after a failure.
+ */
+class OpportunisticConnectionPool {
+    private static final String TAG = OpportunisticConnectionPool.class.getSimpleName();
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    // Associates a Connection to a UUID
+    private final Map<String, Connection> mConnections = new HashMap<>();
+    // Handshake written at the start of every connection to identify the local device
+    private final ByteBuffer mHandshake;
+
+    /** Main constructor
+     * @param localUuid UUID of the local device, announced to the peers upon connection
+     * @param compression whether the batches are compressed for the peers which accept it
+     */
+    OpportunisticConnectionPool(String localUuid, boolean compression) {
+        long features = compression ? OpportunisticHandshake.FEATURE_BATCH_COMPRESSION : 0;
+        mHandshake = OpportunisticHandshake.encode(localUuid, features).asReadOnlyBuffer();
+    }
+
+    /** Retrieve the Connection to use for a given peer. If the endpoint of the peer has changed since the
+     * Connection was created, the previous socket is closed and the next write will connect to the new endpoint.
+     * @param uuid UUID of the peer
+     * @param host IP address of the peer
+     * @param port port number of the peer
+     * @return the Connection associated to the peer
+     */
+    synchronized Connection obtain(String uuid, String host, int port) {
+        Connection conn = mConnections.get(uuid);
+        if(conn == null) {
+            conn = new Connection(uuid, host, port, mHandshake.duplicate());
+            mConnections.put(uuid, conn);
+        } else
+            conn.setEndpoint(host, port);
+        return conn;
+    }
+
+    /** Close and forget the Connection associated to a peer.
+     * @param uuid UUID of the peer
+     */
+    void close(String uuid) {
+        Connection conn;
+        synchronized (this) {
+            conn = mConnections.remove(uuid);
+        }
+        if(conn != null)
+            conn.close();
+    }
+
+    /** Close all the Connections of the pool. */
+    void closeAll() {
+        Map<String, Connection> connections;
+        synchronized (this) {
+            connections = new HashMap<>(mConnections);
+            mConnections.clear();
+        }
+        for(Connection conn : connections.values())
+            conn.close();
+    }
+
+    /** A Connection wraps the sockets used to reach a given peer; a TCP connection and, for the packets sent as
+     * datagrams, a connected UDP socket. Writes to the same Connection are serialized. The features offered in the
+     * handshake are enabled once the peer replies; until then, and with peers which never reply, batches are written
+     * as they are. Closing a Connection does not wait for the write in progress, which it makes fail instead. */
+    static class Connection {
+        private final String mUuid;
+        private final ByteBuffer mHandshake;
+        private String mHost;
+        private int mPort;
+        // Also accessed by close(), which does not take the monitor of the Connection.
+        private volatile SocketChannel mChannel;
+        private volatile DatagramChannel mDatagramChannel;
+        private volatile boolean mClosed;
+        // Reply to the handshake of the current connection, collected without blocking before each write.
+        private final ByteBuffer mReply = ByteBuffer.allocate(32);
+        private boolean mReplyPending;
+        private boolean mCompression;
+        private final OpportunisticCompressor mCompressor = new OpportunisticCompressor();
+
+        Connection(String uuid, String host, int port, ByteBuffer handshake) {
+            mUuid = uuid;
+            mHandshake = handshake;
+            mHost = host;
+            mPort = port;
+        }
+
+        synchronized void setEndpoint(String host, int port) {
+            if(!host.equals(mHost) || port != mPort) {
+                Log.d(TAG, "Endpoint of " + mUuid + " changed to " + host + ":" + port);
+                disconnect();
+                closeDatagram();
+                mHost = host;
+                mPort = port;
+            }
+        }
+
+        /** Write bytes to the peer with a single gathering write. If the connection is not established, it is
+         * established first. If the write fails on a connection that was reused, a single new attempt is made with a
+         * fresh connection as the peer may have closed the previous one in the meantime.
+         * @param buffers bytes to write, from the position to the limit of each buffer
+         * @throws IOException if the bytes could not be written
+         */
+        synchronized void write(ByteBuffer[] buffers) throws IOException {
+            boolean reused = isConnected();
+            int[] positions = new int[buffers.length];
+            for(int i = 0; i < buffers.length; i++)
+                positions[i] = buffers[i].position();
+            try {
+                writeOnce(buffers);
+            } catch (IOException e) {
+                disconnect();
+                if(!reused)
+                    throw e;
+                Log.d(TAG, "Reused connection to " + mUuid + " failed. Reconnecting.");
+                // The bytes written to the previous connection are lost; start over on the new one.
+                for(int i = 0; i < buffers.length; i++)
+                    buffers[i].position(positions[i]);
+                try {
+                    writeOnce(buffers);
+                } catch (IOException retry) {
+                    disconnect();
+                    throw retry;
+                }
+            }
+        }
+
+        /** Write a single packet to the peer as a UDP datagram, sent to the same port as the TCP connection.
+         * @param buffers bytes of the packet, from the position to the limit of each buffer
+         * @throws IOException if the datagram could not be sent
+         */
+        synchronized void writeDatagram(ByteBuffer[] buffers) throws IOException {
+            DatagramChannel channel = mDatagramChannel;
+            if(channel == null) {
+                channel = DatagramChannel.open();
+                mDatagramChannel = channel;
+                try {
+                    ensureOpen();
+                    // The group channel sends to the broadcast address of the Group.
+                    channel.socket().setBroadcast(true);
+                    channel.connect(new InetSocketAddress(mHost, mPort));
+                } catch (IOException e) {
+                    closeDatagram();
+                    throw e;
+                }
+            }
+            try {
+                channel.write(buffers);
+            } catch (IOException e) {
+                closeDatagram();
+                throw e;
+            }
+        }
+
+        /** Close the sockets of this Connection. The monitor is not taken, since a write may hold it for as long as it
+         * is blocked connecting or writing; closing the socket it uses makes that write fail at once.
+         */
+        void close() {
+            mClosed = true;
+            disconnect();
+            closeDatagram();
+        }
+
+        private boolean isConnected() {
+            SocketChannel channel = mChannel;
+            return channel != null && channel.isConnected();
+        }
+
+        private void ensureOpen() throws IOException {
+            if(mClosed)
+                throw new IOException("Connection to " + mUuid + " closed");
+        }
+
+        /** @return the statistics of the compression of the batches written to the peer */
+        OpportunisticCompressor getCompressor() {
+            return mCompressor;
+        }
+
+        private void writeOnce(ByteBuffer[] buffers) throws IOException {
+            SocketChannel channel = mChannel;
+            if(channel == null || !channel.isConnected())
+                channel = connect();
+            pollReply(channel);
+            ByteBuffer compressed = mCompression ? mCompressor.compress(buffers) : null;
+            if(compressed != null) {
+                while(compressed.hasRemaining())
+                    channel.write(compressed);
+                // The batch counts as written, like when it is written as it is.
+                for(ByteBuffer buffer : buffers)
+                    buffer.position(buffer.limit());
+            } else {
+                while(remaining(buffers) > 0)
+                    channel.write(buffers);
+            }
+        }
+
+        /** Read whatever part of the reply to the handshake has arrived, without blocking. Only the first TLV written
+         * by the peer is considered.
+         * @param channel the current connection
+         * @throws IOException if the connection failed
+         */
+        private void pollReply(SocketChannel channel) throws IOException {
+            if(!mReplyPending)
+                return;
+            channel.configureBlocking(false);
+            try {
+                if(channel.read(mReply) < 0)
+                    throw new IOException("Connection closed by " + mUuid);
+            } finally {
+                channel.configureBlocking(true);
+            }
+
+            int length = TlvFraming.frameLength(mReply, 0, mReply.position());
+            if(length > 0 && length <= mReply.position()) {
+                mReplyPending = false;
+                if(OpportunisticHandshake.isReply(mReply, 0)) {
+                    try {
+                        long accepted = OpportunisticHandshake.decodeFeatures(mReply, 0, length);
+                        mCompression = (accepted & OpportunisticHandshake.FEATURE_BATCH_COMPRESSION) != 0;
+                        Log.d(TAG, "Peer " + mUuid + " accepted features " + accepted);
+                    } catch (TlvFraming.MalformedPacketException e) {
+                        // Batches are then written as they are, which any peer understands.
+                        Log.w(TAG, "Invalid reply from " + mUuid + " : " + e.getMessage());
+                    }
+                }
+            } else if(!mReply.hasRemaining())
+                mReplyPending = false;
+        }
+
+        private long remaining(ByteBuffer[] buffers) {
+            long remaining = 0;
+            for(ByteBuffer buffer : buffers)
+                remaining += buffer.remaining();
+            return remaining;
+        }
+
+        /** Establish a new connection. It is published before connecting so that close() can interrupt it.
+         * @return the connection established
+         * @throws IOException if the connection failed or the Connection was closed
+         */
+        private SocketChannel connect() throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            mChannel = channel;
+            try {
+                ensureOpen();
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                channel.socket().connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+                // Identify the local device before any packet.
+                mHandshake.rewind();
+                while(mHandshake.hasRemaining())
+                    channel.write(mHandshake);
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            }
+            Log.d(TAG, "Connection established to " + channel.socket().toString());
+            mReply.clear();
+            mReplyPending = true;
+            mCompression = false;
+            return channel;
+        }
+
+        private void disconnect() {
+            SocketChannel channel = mChannel;
+            mChannel = null;
+            if(channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failure to close the connection to " + mUuid + " " + e.getMessage());
+                }
+            }
+        }
+
+        private void closeDatagram() {
+            DatagramChannel channel = mDatagramChannel;
+            mDatagramChannel = null;
+            if(channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failure to close the datagram socket to " + mUuid + " " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -32,6 +32,7 @@ import pt.ulusofona.copelabs.ndn.android.umobile.wifip2p.OpportunisticPeerTracke
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -53,13 +54,18 @@ public class OpportunisticDaemon extends Service {
         public String getUmobileUuid() { return (current == State.STARTED) ? mAssignedUuid : getString(R.string.notAvailable); }
         public String getVersion() { return jniGetVersion(); }
         public List<Name> getNameTree() { return jniGetNameTree(); }
-        public List<Face> getFaceTable() { return jniGetFaceTable(); }
+        public List<Face> getFaceTable() {
+            List<Face> faces = jniGetFaceTable();
+            mOppFaceManager.addChannelStats(faces);
+            return faces;
+        }
         public void createFace(String faceUri, int persistency, boolean localFields) { jniCreateFace(faceUri, persistency, localFields);}
-        public void bringUpFace(long faceId, OpportunisticChannel oc) { jniBringUpFace(faceId, oc); }
+        public void bringUpFace(long faceId, OpportunisticChannel oc, String host, int port) { jniBringUpFace(faceId, oc, host, port); }
         public void bringDownFace(long faceId) { jniBringDownFace(faceId); }
         public void pushData(long faceId, String name) { jniPushData(faceId, name); }
-        public void sendComplete(long faceId, boolean success) { jniSendComplete(faceId, success); }
-        public void receiveOnFace(long faceId, int byteCount, byte[] buffer) { jniReceiveOnFace(faceId, byteCount, buffer); }
+        public void sendComplete(long faceId, long sequence, boolean success) { jniSendComplete(faceId, sequence, success); }
+        public void releaseRing(long handle) { jniReleaseRing(handle); }
+        public void receiveOnFace(long faceId, ByteBuffer buffer, int offset, int length) { jniReceiveOnFace(faceId, buffer, offset, length); }
         public void destroyFace(long faceId) { jniDestroyFace(faceId); }
         public List<FibEntry> getForwardingInformationBase() { return jniGetForwardingInformationBase(); }
         public void addRoute(String prefix, long faceId, long origin, long cost, long flags) { jniAddRoute(prefix, faceId, origin, cost, flags);}
@@ -126,7 +132,7 @@ public class OpportunisticDaemon extends Service {
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		if(State.STOPPED == getAndSetState(State.STARTED)) {
             Log.v(TAG, "jniStart()");
-            jniStart(getFilesDir().getAbsolutePath(), mConfiguration);
+            jniStart(getFilesDir().getAbsolutePath(), mConfiguration, mAssignedUuid);
             Log.v(TAG, "jniStarted");
 
 			startTime = System.currentTimeMillis();
@@ -174,6 +180,15 @@ public class OpportunisticDaemon extends Service {
 		}
 	}
 
+    /** Releases part of the packets queued by the Opportunistic Faces when the system runs low on memory.
+     * See https://developer.android.com/reference/android/content/ComponentCallbacks2.html */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Ignored by the daemon when it is not running.
+        jniTrimMemory(level);
+    }
+
     /** Retrieve a given Face
      * @param faceId the FaceId for which the Face should be returned
      * @return the Face or null if no Face has that faceId
@@ -211,7 +226,7 @@ public class OpportunisticDaemon extends Service {
     }
 
 	// UmobileService related functions.
-    private native void jniStart(String homepath, String config);
+    private native void jniStart(String homepath, String config, String uuid);
 	private native void jniStop();
 
     /** [JNI] Retrieve the version of the underlying NDN Opportunistic Daemon.
@@ -239,8 +254,10 @@ public class OpportunisticDaemon extends Service {
     /** [JNI] Set the status of an Opportunistic Face to UP and attach an OpportunisticChannel to it
      * @param id the FaceId of the Face to bring up
      * @param oc the OpportunisticChannel this Face has to use to transmit packets
+     * @param host IP address of the peer, used when the Face writes to its own socket (native_sockets)
+     * @param port port number of the peer, used when the Face writes to its own socket (native_sockets)
      */
-    private native void jniBringUpFace(long id, OpportunisticChannel oc);
+    private native void jniBringUpFace(long id, OpportunisticChannel oc, String host, int port);
 
     /** [JNI] Set the status of an Opportunistic Face to DOWN and detach its OpportunisticChannel
      * @param id the FaceId of the Face to bring down
@@ -252,20 +269,33 @@ public class OpportunisticDaemon extends Service {
      */
     private native void jniPushData(long id, String name);
 
+    /** [JNI] Drop part of the packets queued by the Opportunistic Faces, more so for the peers out of range
+     * @param level the memory trim level reported by the system
+     */
+    private native void jniTrimMemory(int level);
+
     /** [JNI] Used by the OpportunisticChannel to notify its encapsulating Face of the result of the
-     * transmission of the last packet.
+     * transmission of a packet. A successful completion also acknowledges all the packets sent before it.
      * @param id the FaceId of the Face to notify
-     * @param success a boolean value indicated success (true) or failure (false) to transmit the last
+     * @param sequence the sequence number the Face assigned to the packet when it was handed for transmission
+     * @param success a boolean value indicated success (true) or failure (false) to transmit the
      *               packet
      */
-    private native void jniSendComplete(long id, boolean success);
+    private native void jniSendComplete(long id, long sequence, boolean success);
+
+    /** [JNI] Used by the OpportunisticChannel to release the ring of a Face once it no longer reads it.
+     * @param handle the reference to the ring passed to the channel when it was attached
+     */
+    private native void jniReleaseRing(long handle);
 
-    /** [JNI] Used by the OpportunisticChannel to notify its encapsulating Face that a packet has been received
+    /** [JNI] Used by the OpportunisticFaceManager to notify a Face that packets have been received. The bytes are
+     * consumed before the call returns so the buffer can be reused immediately.
      * @param id the FaceId of the Face to notify
-     * @param receivedBytes the number of bytes received
-     * @param buffer the buffer storing the received bytes
+     * @param buffer the direct buffer storing the received bytes
+     * @param offset the position of the first received byte within the buffer
+     * @param length the number of bytes received; one or more complete packets laid out back-to-back
      */
-    private native void jniReceiveOnFace(long id, int receivedBytes, byte[] buffer);
+    private native void jniReceiveOnFace(long id, ByteBuffer buffer, int offset, int length);
 
     /** [JNI] Close a Face
      * @param faceId the FaceId of the Face to close
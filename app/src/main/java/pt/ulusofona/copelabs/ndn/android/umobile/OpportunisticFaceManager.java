@@ -13,25 +13,25 @@ import android.content.IntentFilter;
 import android.net.NetworkInfo;
 import android.net.wifi.p2p.WifiP2pGroup;
 import android.net.wifi.p2p.WifiP2pManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import pt.ulusofona.copelabs.ndn.android.models.Face;
 import pt.ulusofona.copelabs.ndn.android.models.NsdService;
@@ -53,6 +53,14 @@ import pt.ulusofona.copelabs.ndn.android.umobile.wifip2p.OpportunisticPeerTracke
 public class OpportunisticFaceManager implements Observer {
     private static final String TAG = OpportunisticFaceManager.class.getSimpleName();
     private static final int DEFAULT_PORT = 16363;
+    // Port on which the group Face broadcasts to all the members of the Wi-Fi Direct Group
+    private static final int GROUP_PORT = 16364;
+    // Whether the batches written to the peers are compressed when they accept it.
+    private static final boolean BATCH_COMPRESSION = true;
+    // Name under which the channel of the group Face is known to the connection pool
+    private static final String GROUP_CHANNEL = "group";
+    // Milliseconds after which the group Face is brought up again when its channel failed
+    private static final long GROUP_RETRY_DELAY = 5000;
 
     private Context mContext;
     private OpportunisticDaemon.NodBinder mDaemon;
@@ -61,13 +69,30 @@ public class OpportunisticFaceManager implements Observer {
     private Map<String, OpportunisticPeer> mUmobilePeers = new HashMap<>();
     // Associates a NsdService to a UUID
     private Map<String, NsdService> mUmobileServices = new HashMap<>();
-    // Associates a FaceId to a UUID
-    private Map<String, Long> mOppFaceIds = new HashMap<>();
+    // Associates a FaceId to a UUID. Also read by the OpportunisticReceiver.
+    private Map<String, Long> mOppFaceIds = new ConcurrentHashMap<>();
+    // Associates a UUID to the IP address of its NsdService. Used for connections which were not identified by a handshake.
+    private Map<String, String> mUuidsByHost = new ConcurrentHashMap<>();
     // Associates a OpportunisticChannel to a UUID
     private Map<String, OpportunisticChannel> mOppChannels = new HashMap<>();
+    // Long-lived connections used by the OpportunisticChannels
+    private OpportunisticConnectionPool mConnectionPool;
+
+    // Broadcast address of the current Wi-Fi Direct Group, the group Face bound to it and its channel
+    private String mGroupAddress = null;
+    private volatile long mGroupFaceId = -1L;
+    private OpportunisticChannel mGroupChannel = null;
+    // The group Face outlives the failures of its channel; it is brought up again with a new one while enabled.
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mGroupRetry = new Runnable() {
+        @Override
+        public void run() {
+            bringUpGroupFace();
+        }
+    };
 
     private boolean mEnabled = false;
-    private ConnectionHandler mConnector;
+    private OpportunisticReceiver mReceiver;
 
     private NsdServiceRegistrar mRegistrar = new NsdServiceRegistrar();
     private ConnectionEventDetector mConnectionDetector = new ConnectionEventDetector();
@@ -80,6 +105,7 @@ public class OpportunisticFaceManager implements Observer {
      */
 	void enable(Context context, OpportunisticDaemon.NodBinder binder) {
         mDaemon = binder;
+        mConnectionPool = new OpportunisticConnectionPool(mDaemon.getUmobileUuid(), BATCH_COMPRESSION);
 
         mContext = context;
         mContext.registerReceiver(mConnectionDetector, new IntentFilter(WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION));
@@ -98,12 +124,23 @@ public class OpportunisticFaceManager implements Observer {
            to make the link with the socket on the other side. */
         if(face.getRemoteUri().startsWith("opp://")) {
             long faceId = face.getFaceId();
+            // The URI may carry a path selecting the transport mode (e.g. opp://<uuid>/udp)
             String peerUuid = face.getRemoteUri().substring(6);
+            if(peerUuid.indexOf('/') >= 0)
+                peerUuid = peerUuid.substring(0, peerUuid.indexOf('/'));
             mOppFaceIds.put(peerUuid, faceId);
 
             Log.d(TAG, "Registering Opportunistic Face " + faceId + " in RIB for prefix /ndn/multicast and /emergency.");
             mDaemon.addRoute("/ndn/multicast", faceId, 0L, 0L, 1L);
             mDaemon.addRoute("/emergency", faceId, 0L, 0L, 1L);
+        } else if(face.getRemoteUri().startsWith("oppmc://")) {
+            /* The group Face reaches all the members of the Group at once. While it is UP, the Faces of the peers
+               in the Group leave the packets under these prefixes to it. */
+            mGroupFaceId = face.getFaceId();
+            Log.d(TAG, "Registering group Face " + mGroupFaceId + " in RIB for prefix /ndn/multicast and /emergency.");
+            mDaemon.addRoute("/ndn/multicast", mGroupFaceId, 0L, 0L, 1L);
+            mDaemon.addRoute("/emergency", mGroupFaceId, 0L, 0L, 1L);
+            bringUpGroupFace();
         }
     }
 
@@ -116,9 +153,9 @@ public class OpportunisticFaceManager implements Observer {
             long faceId = mOppFaceIds.get(uuid);
             NsdService svc = mUmobileServices.get(uuid);
             if(!mOppChannels.containsKey(uuid)) {
-                OpportunisticChannel chan = new OpportunisticChannel(mDaemon, this, uuid, faceId, svc.getHost(), svc.getPort());
+                OpportunisticChannel chan = new OpportunisticChannel(mDaemon, this, uuid, faceId, svc.getHost(), svc.getPort(), mConnectionPool);
                 mOppChannels.put(uuid, chan);
-                mDaemon.bringUpFace(faceId, chan);
+                mDaemon.bringUpFace(faceId, chan, svc.getHost(), svc.getPort());
             }
         }
     }
@@ -128,19 +165,95 @@ public class OpportunisticFaceManager implements Observer {
      */
     void bringDownFace(String uuid) {
         Log.d(TAG, "Bringing DOWN face for " + uuid);
+        if(GROUP_CHANNEL.equals(uuid)) {
+            bringDownGroupFace();
+            if(mEnabled) {
+                Log.d(TAG, "Bringing UP group face again in " + GROUP_RETRY_DELAY + "ms");
+                mMainHandler.postDelayed(mGroupRetry, GROUP_RETRY_DELAY);
+            }
+            return;
+        }
         if (mOppFaceIds.containsKey(uuid)) {
             if(mOppChannels.containsKey(uuid)) {
-                mOppChannels.remove(uuid);
+                mOppChannels.remove(uuid).close();
+                mConnectionPool.close(uuid);
                 mDaemon.bringDownFace(mOppFaceIds.get(uuid));
             }
         }
     }
 
+    /** Complete the Faces reported by the daemon with the statistics of the channels attached to them. Only called from
+     * the main thread.
+     * @param faces the Faces to complete
+     */
+    void addChannelStats(List<Face> faces) {
+        Map<Long, OpportunisticChannel> channels = new HashMap<>();
+        for(OpportunisticChannel channel : mOppChannels.values())
+            channels.put(channel.getFaceId(), channel);
+        if(mGroupChannel != null)
+            channels.put(mGroupChannel.getFaceId(), mGroupChannel);
+        for(Face face : faces) {
+            OpportunisticChannel channel = channels.get(face.getFaceId());
+            if(channel != null) {
+                face.setChannelStats(channel.getQueueDepth(), channel.getUtilisation());
+                face.setCompressionStats(channel.getCompressionRatio(), channel.getCompressionCpuTime());
+            }
+        }
+    }
+
+    /** @return the FaceId of the group Face, or -1 if it has not been created */
+    long getGroupFaceId() {
+        return mGroupFaceId;
+    }
+
+    /** Create the group Face bound to the broadcast address of the current Group or, if it already exists, bring it up.
+     * @param broadcastAddress broadcast address of the Group
+     * @param prefixLength length of the network prefix of the Group, which tells the daemon which peers are members
+     */
+    private void enableGroupFace(String broadcastAddress, short prefixLength) {
+        if(broadcastAddress == null) {
+            Log.w(TAG, "No broadcast address for the Group. Group Face disabled.");
+            return;
+        }
+        if(!broadcastAddress.equals(mGroupAddress)) {
+            if(mGroupFaceId != -1L) {
+                mDaemon.destroyFace(mGroupFaceId);
+                mGroupFaceId = -1L;
+            }
+            mGroupAddress = broadcastAddress;
+            mDaemon.createFace("oppmc://" + broadcastAddress + ":" + GROUP_PORT + "/" + prefixLength, 0, false);
+        } else
+            bringUpGroupFace();
+    }
+
+    private void bringUpGroupFace() {
+        if(mEnabled && mGroupFaceId != -1L && mGroupChannel == null) {
+            Log.d(TAG, "Bringing UP group face " + mGroupFaceId + " on " + mGroupAddress + ":" + GROUP_PORT);
+            mGroupChannel = new OpportunisticChannel(mDaemon, this, GROUP_CHANNEL, mGroupFaceId, mGroupAddress, GROUP_PORT, mConnectionPool);
+            mDaemon.bringUpFace(mGroupFaceId, mGroupChannel, mGroupAddress, GROUP_PORT);
+        }
+    }
+
+    private void bringDownGroupFace() {
+        mMainHandler.removeCallbacks(mGroupRetry);
+        if(mGroupChannel != null) {
+            Log.d(TAG, "Bringing DOWN group face " + mGroupFaceId);
+            mGroupChannel.close();
+            mGroupChannel = null;
+            mConnectionPool.close(GROUP_CHANNEL);
+            mDaemon.bringDownFace(mGroupFaceId);
+        }
+    }
+
     /** Update service information regarding a NDN-Opp peer
      * @param current new information to be used for the update
      */
     private void updateService(NsdService current) {
-        mUmobileServices.put(current.getUuid(), current);
+        NsdService previous = mUmobileServices.put(current.getUuid(), current);
+        if(previous != null && previous.getHost() != null && !previous.getHost().equals(current.getHost()))
+            mUuidsByHost.remove(previous.getHost());
+        if(current.getHost() != null)
+            mUuidsByHost.put(current.getHost(), current.getUuid());
         if(current.getStatus() == NsdService.Status.AVAILABLE)
             bringUpFace(current.getUuid());
         else if(current.getStatus() == NsdService.Status.UNAVAILABLE)
@@ -150,17 +263,18 @@ public class OpportunisticFaceManager implements Observer {
     /** Enable the service which enables packets to be transferred. This includes opening a listening socket
      * on an IP:port combination which can be used to effectively transfer Interest/Data packets among the NDN-Opp peers.
      * @param assignedIp the IP that has been assigned to the current device within the Wi-Fi Direct Group it is connected to
+     * @param broadcastAddress the broadcast address of the Wi-Fi Direct Group, used by the group Face
+     * @param prefixLength the length of the network prefix of the Wi-Fi Direct Group
      */
-    private void enableService(String assignedIp) {
+    private void enableService(String assignedIp, String broadcastAddress, short prefixLength) {
         if(!mEnabled) {
             try {
                 Log.v(TAG, "Enabling ServerSocket on " + assignedIp + ":" + DEFAULT_PORT);
-                ServerSocket socket = new ServerSocket();
-                socket.bind(new InetSocketAddress(assignedIp, DEFAULT_PORT));
-                mConnector = new ConnectionHandler(socket);
-                mConnector.start();
+                mReceiver = new OpportunisticReceiver(mDaemon, this, assignedIp, DEFAULT_PORT, GROUP_PORT);
+                mReceiver.start();
                 mRegistrar.register(mContext, mDaemon.getUmobileUuid(), assignedIp, DEFAULT_PORT);
                 mEnabled = true;
+                enableGroupFace(broadcastAddress, prefixLength);
             } catch (IOException e) {
                 Log.e(TAG, "Failed to open listening socket");
                 e.printStackTrace();
@@ -171,7 +285,9 @@ public class OpportunisticFaceManager implements Observer {
     /** Disable the packet transfer service. */
     private void disableService() {
         if(mEnabled) {
-            mConnector.terminate();
+            mReceiver.terminate();
+            bringDownGroupFace();
+            mConnectionPool.closeAll();
             mRegistrar.unregister();
             mEnabled = false;
         }
@@ -207,84 +323,33 @@ public class OpportunisticFaceManager implements Observer {
              * in the existing Opportunistic faces, bring it up. */
             if(!mUmobilePeers.containsKey(peer.getUuid())) {
                 Log.d(TAG, "Requesting Face creation");
+                // Whether small packets are sent as datagrams is decided by face_system.opp.datagrams.
                 mDaemon.createFace("opp://" + peer.getUuid(), 0, false);
             }
             mUmobilePeers.put(peer.getUuid(), peer);
         }
     }
 
-    private class ConnectionHandler extends Thread {
-        // Matches the constant from ndn-cxx/encoding/tlv.hpp
-        private static final int MAX_NDN_PACKET_SIZE = 8800;
-        private byte[] mBuffer;
-        private ServerSocket mAcceptingSocket;
-        private boolean mEnabled;
-
-        ConnectionHandler(ServerSocket sock) {
-            mBuffer = new byte[MAX_NDN_PACKET_SIZE];
-            mAcceptingSocket = sock;
-            mEnabled = true;
-        }
-
-        void terminate() {
-            mEnabled = false;
-            try {
-                mAcceptingSocket.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Failure to close the ServerSocket " + e.getMessage());
-            }
-        }
-
-        /** Main thread encapsulating the logic of packet reception
-         */
-        @Override
-        public void run() {
-            mEnabled = true;
-            Log.d(TAG, "Accepting on " + mAcceptingSocket.toString());
-            while(mEnabled) {
-                try {
-                    // @TODO: multi-threaded receiver.
-                    // Accept the next connection.
-                    Socket connection = mAcceptingSocket.accept();
-                    Log.d(TAG, "Connection from " + connection.toString());
-                    DataInputStream in = new DataInputStream(connection.getInputStream());
-                    int availableBytes = in.available();
-                    // Receive the bytes into the local buffer.
-                    int received = in.read(mBuffer, 0, availableBytes);
-                    Log.d(TAG, "Received " + received + " bytes of " + availableBytes + " expected.");
-                    // Cleanup
-                    in.close();
-                    // Pass on the buffer to the Face for which it is intended. The identification is done by
-                    // matching the remote IP with the UUID.
-                    /** Use the IP to identify which service (UUID) is on the other end
-                     pass the received packet to the corresponding Opportunistic Face. */
-                    if(received > 0)
-                        mDaemon.receiveOnFace(identifyFaceIdFromHostAddress(connection.getInetAddress().getHostAddress()), received, mBuffer);
-                    // Close connection
-                    connection.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Connection went WRONG.");
-                }
-            }
-        }
-
-        /** Returns the FaceId of the Face corresponding to the remote host.
-         * @param hostAddress the host address of the remote point of the connection
-         * @return the FaceId of the Face that points to the remote host
-         */
-        private long identifyFaceIdFromHostAddress(String hostAddress) {
-            for(NsdService svc : mUmobileServices.values())
-                if(svc.getHost().equals(hostAddress))
-                    return mOppFaceIds.get(svc.getUuid());
-
-            Log.e(TAG, "No service matching " + hostAddress + " found.");
+    /** Returns the FaceId of the Face corresponding to a connection accepted by the OpportunisticReceiver.
+     * @param peerUuid UUID announced by the handshake of the connection, or null if it had none
+     * @param hostAddress the host address of the remote point of the connection
+     * @return the FaceId of the Face that points to the remote peer, or -1 if it is unknown
+     */
+    long identifyFaceId(String peerUuid, String hostAddress) {
+        String uuid = (peerUuid != null) ? peerUuid : mUuidsByHost.get(hostAddress);
+        Long faceId = (uuid != null) ? mOppFaceIds.get(uuid) : null;
+        if(faceId == null) {
+            Log.e(TAG, "No Face matching " + peerUuid + "@" + hostAddress + " found.");
             return -1L;
         }
+        return faceId;
     }
 
     /** ConnectionEventDetector keeps track of connection events relating to the Wi-Fi Direct Group */
     private class ConnectionEventDetector extends BroadcastReceiver {
         private String mAssignedIpv4 = null;
+        private String mBroadcastIpv4 = null;
+        private short mPrefixLength = 0;
 
         private String extractIp(WifiP2pGroup group) {
             String ipAddress = null;
@@ -300,8 +365,11 @@ public class OpportunisticFaceManager implements Observer {
                         if(interfaceName.equals(iface.getName())) {
                             for (InterfaceAddress ifAddr : iface.getInterfaceAddresses()) {
                                 InetAddress address = ifAddr.getAddress();
-                                if (address instanceof Inet4Address && !address.isAnyLocalAddress())
+                                if (address instanceof Inet4Address && !address.isAnyLocalAddress()) {
                                     ipAddress = address.getHostAddress();
+                                    mBroadcastIpv4 = (ifAddr.getBroadcast() != null) ? ifAddr.getBroadcast().getHostAddress() : null;
+                                    mPrefixLength = ifAddr.getNetworkPrefixLength();
+                                }
                             }
                         }
                     }
@@ -335,11 +403,11 @@ public class OpportunisticFaceManager implements Observer {
                         if(!mAssignedIpv4.equals(newIpv4)) {
                             disableService();
                             mAssignedIpv4 = newIpv4;
-                            enableService(mAssignedIpv4);
+                            enableService(mAssignedIpv4, mBroadcastIpv4, mPrefixLength);
                         }
                     } else {
                         mAssignedIpv4 = newIpv4;
-                        enableService(mAssignedIpv4);
+                        enableService(mAssignedIpv4, mBroadcastIpv4, mPrefixLength);
                     }
 
                 } else {
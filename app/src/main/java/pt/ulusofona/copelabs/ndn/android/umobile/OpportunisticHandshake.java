@@ -0,0 +1,159 @@
+/**
+ *  @version 1.0
+ * COPYRIGHTS COPELABS/ULHT, LGPLv3.0
+ * Implementation of the handshake which opens each connection between NDN-Opp peers.
+ */
+package pt.ulusofona.copelabs.ndn.android.umobile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/** The first TLV written on a connection identifies the peer which opened it, so that the receiver can associate
+ * the connection to the right Face without relying on the IP address of the peer. The format is
+ * Handshake(128) { PeerUuid(129) { UTF-8 bytes of the UUID } [Features(130) { nonNegativeInteger }] }. The optional
+ * Features are offered by the peer; the receiver answers with HandshakeReply(131) { Features(130) } listing those it
+ * accepts. The TLV types are from the application-specific range and never collide with Interest or Data packets.
+ */
+class OpportunisticHandshake {
+    static final int TLV_HANDSHAKE = 128;
+    static final int TLV_PEER_UUID = 129;
+    static final int TLV_FEATURES = 130;
+    static final int TLV_HANDSHAKE_REPLY = 131;
+
+    // Bits of the Features; packets may be coded by the OppNameCodec of the peer.
+    static final long FEATURE_NAME_CODEC = 1;
+    // Batches may be compressed by the OpportunisticCompressor of the peer.
+    static final long FEATURE_BATCH_COMPRESSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Encode the handshake identifying the local device.
+     * @param uuid UUID of the local device
+     * @param features features offered to the peer, which must fit in a single octet; 0 to offer none
+     * @return the encoded handshake, ready to be written
+     */
+    static ByteBuffer encode(String uuid, long features) {
+        byte[] value = uuid.getBytes(UTF_8);
+        int innerSize = 1 + varNumberSize(value.length) + value.length + (features != 0 ? 3 : 0);
+        ByteBuffer encoded = ByteBuffer.allocate(1 + varNumberSize(innerSize) + innerSize);
+        encoded.put((byte) TLV_HANDSHAKE);
+        putVarNumber(encoded, innerSize);
+        encoded.put((byte) TLV_PEER_UUID);
+        putVarNumber(encoded, value.length);
+        encoded.put(value);
+        if(features != 0) {
+            encoded.put((byte) TLV_FEATURES);
+            encoded.put((byte) 1);
+            encoded.put((byte) features);
+        }
+        encoded.flip();
+        return encoded;
+    }
+
+    /** @param buffer buffer containing the received bytes
+     * @param offset position of the first byte of a complete TLV
+     * @return whether the TLV is the reply to a handshake
+     */
+    static boolean isReply(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xFF) == TLV_HANDSHAKE_REPLY;
+    }
+
+    /** @param buffer buffer containing the received bytes
+     * @param offset position of the first byte of a complete TLV
+     * @return whether the TLV is a handshake
+     */
+    static boolean isHandshake(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xFF) == TLV_HANDSHAKE;
+    }
+
+    /** Extract the UUID of the peer from a complete handshake.
+     * @param buffer buffer containing the received bytes
+     * @param offset position of the first byte of the handshake
+     * @param length size of the handshake, as returned by TlvFraming.frameLength
+     * @return the UUID of the peer which opened the connection
+     * @throws TlvFraming.MalformedPacketException if the handshake does not contain a PeerUuid
+     */
+    static String decodePeerUuid(ByteBuffer buffer, int offset, int length) throws TlvFraming.MalformedPacketException {
+        byte[] value = findValue(buffer, offset, length, TLV_PEER_UUID);
+        if(value == null)
+            throw new TlvFraming.MalformedPacketException("Handshake without PeerUuid");
+        return new String(value, UTF_8);
+    }
+
+    /** Extract the features offered by the peer from a complete handshake, or accepted by the peer from a complete
+     * reply.
+     * @param buffer buffer containing the received bytes
+     * @param offset position of the first byte of the handshake or reply
+     * @param length size of the handshake or reply, as returned by TlvFraming.frameLength
+     * @return the features offered or accepted by the peer; 0 if there are none
+     * @throws TlvFraming.MalformedPacketException if an element exceeds the handshake or reply
+     */
+    static long decodeFeatures(ByteBuffer buffer, int offset, int length) throws TlvFraming.MalformedPacketException {
+        byte[] value = findValue(buffer, offset, length, TLV_FEATURES);
+        long features = 0;
+        if(value != null)
+            for(byte octet : value)
+                features = (features << 8) | (octet & 0xFF);
+        return features;
+    }
+
+    /** Encode the reply listing the features accepted from those offered by the peer.
+     * @param features accepted features, which must fit in a single octet
+     * @return the encoded reply, ready to be written
+     */
+    static ByteBuffer encodeReply(long features) {
+        ByteBuffer encoded = ByteBuffer.allocate(5);
+        encoded.put((byte) TLV_HANDSHAKE_REPLY);
+        encoded.put((byte) 3);
+        encoded.put((byte) TLV_FEATURES);
+        encoded.put((byte) 1);
+        encoded.put((byte) features);
+        encoded.flip();
+        return encoded;
+    }
+
+    /** Find the value of the first element of a given type within a complete handshake or reply.
+     * @throws TlvFraming.MalformedPacketException if an element exceeds the handshake or the received bytes
+     */
+    private static byte[] findValue(ByteBuffer buffer, int offset, int length, int wanted) throws TlvFraming.MalformedPacketException {
+        int end = offset + length;
+        long[] number = new long[1];
+        // Skip the TLV-TYPE and TLV-LENGTH of the handshake itself.
+        int position = TlvFraming.readVarNumber(buffer, offset, end, number);
+        position = TlvFraming.readVarNumber(buffer, position, end, number);
+        while(position < end) {
+            position = TlvFraming.readVarNumber(buffer, position, end, number);
+            long type = number[0];
+            position = TlvFraming.readVarNumber(buffer, position, end, number);
+            long valueSize = number[0];
+            if(valueSize < 0 || valueSize > end - position)
+                throw new TlvFraming.MalformedPacketException("Handshake element of " + valueSize + " bytes exceeds the handshake");
+            if(type == wanted) {
+                byte[] value = new byte[(int) valueSize];
+                for(int i = 0; i < value.length; i++)
+                    value[i] = buffer.get(position + i);
+                return value;
+            }
+            position += (int) valueSize;
+        }
+        return null;
+    }
+
+    private static int varNumberSize(int value) {
+        if(value < 253) return 1;
+        else if(value <= 0xFFFF) return 3;
+        else return 5;
+    }
+
+    private static void putVarNumber(ByteBuffer buffer, int value) {
+        if(value < 253)
+            buffer.put((byte) value);
+        else if(value <= 0xFFFF) {
+            buffer.put((byte) 253);
+            buffer.putShort((short) value);
+        } else {
+            buffer.put((byte) 254);
+            buffer.putInt(value);
+        }
+    }
+}
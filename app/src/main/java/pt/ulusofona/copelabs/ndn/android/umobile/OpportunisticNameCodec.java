@@ -0,0 +1,169 @@
+/**
+ *  @version 1.0
+ * COPYRIGHTS COPELABS/ULHT, LGPLv3.0
+ * Implementation of the decoding of the Names coded by the peers which write to their own connections.
+ */
+package pt.ulusofona.copelabs.ndn.android.umobile;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Counterpart of the OppNameCodec of NFD. A peer which was offered the codec in the handshake of a connection may
+ * write packets whose Name was shortened against a dictionary of the Names it recently wrote on that connection. The
+ * format is CodedPacket(132) { DictionaryEntry SharedLength original packet without the SharedLength first bytes of
+ * its Name value }. Each connection keeps its own instance, which maintains the same dictionary as the sender: from the
+ * first coded packet on, the Name of every packet received, coded or not, replaces the oldest entry.
+ */
+class OpportunisticNameCodec {
+    static final int TLV_CODED_PACKET = 132;
+
+    private static final int DICTIONARY_SIZE = 16;
+    // Matches the constants from ndn-cxx/encoding/tlv.hpp and ndn-cxx/lp/tlv.hpp
+    private static final int TLV_INTEREST = 5;
+    private static final int TLV_DATA = 6;
+    private static final int TLV_NAME = 7;
+    private static final int TLV_LP_PACKET = 100;
+    private static final int TLV_FRAGMENT = 80;
+    private static final int TLV_FRAG_INDEX = 82;
+
+    private final List<byte[]> mDictionary = new ArrayList<>(DICTIONARY_SIZE);
+    private int mOldest = 0;
+    private boolean mStarted = false;
+
+    /** @param buffer buffer containing the received bytes
+     * @param offset position of the first byte of a complete TLV
+     * @return whether the TLV is a coded packet
+     */
+    static boolean isCoded(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xFF) == TLV_CODED_PACKET;
+    }
+
+    /** Restore the original packet from a coded packet.
+     * @param buffer buffer containing the received bytes
+     * @param offset position of the first byte of the coded packet
+     * @param length size of the coded packet, as returned by TlvFraming.frameLength
+     * @param decoded buffer into which the original packet is written, from its position
+     * @throws TlvFraming.MalformedPacketException if the coded packet exceeds the received bytes or does not match
+     * the dictionary
+     */
+    void decode(ByteBuffer buffer, int offset, int length, ByteBuffer decoded) throws TlvFraming.MalformedPacketException {
+        int end = offset + length;
+        long[] number = new long[1];
+        // Skip the TLV-TYPE and TLV-LENGTH of the coded packet itself.
+        int position = TlvFraming.readVarNumber(buffer, offset, end, number);
+        position = TlvFraming.readVarNumber(buffer, position, end, number);
+        position = TlvFraming.readVarNumber(buffer, position, end, number);
+        long entry = number[0];
+        position = TlvFraming.readVarNumber(buffer, position, end, number);
+        long shared = number[0];
+
+        if(shared < 0 || (shared > 0 && (entry < 0 || entry >= mDictionary.size() || shared > mDictionary.get((int) entry).length)))
+            throw new TlvFraming.MalformedPacketException("Coded packet refers to an unknown Name");
+        if(end - position + shared > decoded.remaining())
+            throw new TlvFraming.MalformedPacketException("Coded packet exceeds " + decoded.remaining() + " bytes");
+        // The headers which precede the Name are left untouched by the coding.
+        int[] name = findNameValue(buffer, position, end, false);
+        if(name == null)
+            throw new TlvFraming.MalformedPacketException("Coded packet without a Name");
+
+        int start = decoded.position();
+        put(decoded, buffer, position, name[0]);
+        if(shared > 0)
+            decoded.put(mDictionary.get((int) entry), 0, (int) shared);
+        put(decoded, buffer, name[0], end);
+
+        mStarted = true;
+        observe(decoded, start, decoded.position() - start);
+    }
+
+    /** Update the dictionary with the Name of a packet received as it is.
+     * @param buffer buffer containing the received bytes
+     * @param offset position of the first byte of the packet
+     * @param length size of the packet
+     */
+    void observe(ByteBuffer buffer, int offset, int length) {
+        if(!mStarted)
+            return;
+        int[] name = findNameValue(buffer, offset, offset + length, true);
+        if(name == null)
+            return;
+
+        byte[] value = new byte[name[1]];
+        for(int i = 0; i < value.length; i++)
+            value[i] = buffer.get(name[0] + i);
+        // Identical Names are kept once, like the sender does.
+        for(byte[] known : mDictionary)
+            if(Arrays.equals(known, value))
+                return;
+        if(mDictionary.size() < DICTIONARY_SIZE)
+            mDictionary.add(value);
+        else {
+            mDictionary.set(mOldest, value);
+            mOldest = (mOldest + 1) % DICTIONARY_SIZE;
+        }
+    }
+
+    /** Locate the value of the Name of the Interest or Data carried by a packet, possibly as the first fragment of an
+     * LpPacket. Mirrors findNameValue from NFD.
+     * @param buffer buffer containing the packet
+     * @param offset position of the first byte of the packet
+     * @param limit position following the last byte of the packet
+     * @param complete whether the Name value must lie entirely before the limit
+     * @return the position and the size of the Name value, or null if the packet does not start with a Name
+     */
+    private static int[] findNameValue(ByteBuffer buffer, int offset, int limit, boolean complete) {
+        int position = offset;
+        long[] header = new long[2];
+        position = readHeader(buffer, position, limit, header);
+        if(position < 0)
+            return null;
+
+        if(header[0] == TLV_LP_PACKET) {
+            // Only the first fragment of a packet starts with its Name.
+            boolean hasFragment = false;
+            while(!hasFragment && (position = readHeader(buffer, position, limit, header)) >= 0) {
+                if(header[0] == TLV_FRAGMENT)
+                    hasFragment = true;
+                else if(header[0] == TLV_FRAG_INDEX && header[1] > 0 && position < limit && buffer.get(position) != 0)
+                    return null;
+                else if(header[1] < 0 || header[1] > limit - position)
+                    return null;
+                else
+                    position += (int) header[1];
+            }
+            if(!hasFragment || (position = readHeader(buffer, position, limit, header)) < 0)
+                return null;
+        }
+
+        if(header[0] != TLV_INTEREST && header[0] != TLV_DATA)
+            return null;
+        position = readHeader(buffer, position, limit, header);
+        if(position < 0 || header[0] != TLV_NAME || (complete && (header[1] < 0 || header[1] > limit - position)))
+            return null;
+        return new int[] {position, (int) header[1]};
+    }
+
+    /** Read the TLV-TYPE and TLV-LENGTH at a given position.
+     * @return the position of the TLV-VALUE, or -1 if the header does not lie entirely before the limit
+     */
+    private static int readHeader(ByteBuffer buffer, int position, int limit, long[] header) {
+        for(int i = 0; i < 2; i++) {
+            if(position >= limit)
+                return -1;
+            int size = 1 + TlvFraming.varNumberTailSize(buffer.get(position) & 0xFF);
+            if(position + size > limit)
+                return -1;
+            header[i] = TlvFraming.decodeVarNumber(buffer, position);
+            position += size;
+        }
+        return position;
+    }
+
+    private static void put(ByteBuffer destination, ByteBuffer source, int from, int to) {
+        ByteBuffer range = source.duplicate();
+        range.limit(to).position(from);
+        destination.put(range);
+    }
+}
@@ -0,0 +1,414 @@
+/**
+ *  @version 1.0
+ * COPYRIGHTS COPELABS/ULHT, LGPLv3.0
+ * Implementation of the reception of packets transferred by the other NDN-Opp peers.
+ */
+package pt.ulusofona.copelabs.ndn.android.umobile;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.zip.Inflater;
+
+/** The OpportunisticReceiver multiplexes all the connections opened by the other NDN-Opp peers on a single thread.
+ * Each connection borrows a buffer from a bounded pool while it has bytes pending; when the pool is exhausted,
+ * connections stop being read until a buffer is returned, which pushes back on the senders through TCP flow control.
+ * Connections on which nothing was received for IDLE_TIMEOUT are closed. Packets sent as UDP datagrams are received
+ * on the same port and attributed to their sender by its IP address. Packets broadcast by the group Faces of the other
+ * members of the Group are received on the group port and passed on to the local group Face.
+ */
+class OpportunisticReceiver extends Thread {
+    private static final String TAG = OpportunisticReceiver.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 8 * TlvFraming.MAX_NDN_PACKET_SIZE;
+    private static final int BUFFER_POOL_SIZE = 16;
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+    private static final long IDLE_CHECK_PERIOD = 10 * 1000;
+    // Maximum number of datagrams received in a row before the connections are served again.
+    private static final int DATAGRAMS_PER_ROUND = 64;
+
+    private final OpportunisticDaemon.NodBinder mDaemon;
+    private final OpportunisticFaceManager mOppFaceManager;
+    private final Selector mSelector;
+    private final ServerSocketChannel mAcceptingSocket;
+    private final DatagramChannel mDatagramSocket;
+    private final DatagramChannel mGroupSocket;
+    private final String mLocalAddress;
+    private final ByteBuffer mDatagramBuffer = ByteBuffer.allocateDirect(TlvFraming.MAX_NDN_PACKET_SIZE);
+    // Packets restored from their coded form before being passed on.
+    private final ByteBuffer mDecodedBuffer = ByteBuffer.allocateDirect(TlvFraming.MAX_NDN_PACKET_SIZE);
+    // Batches restored from their compressed form before being passed on.
+    private final Inflater mInflater = new Inflater(true);
+    private final byte[] mCompressed = new byte[TlvFraming.MAX_NDN_PACKET_SIZE];
+    private final byte[] mDecompressed = new byte[OpportunisticCompressor.MAX_BATCH_SIZE];
+    private final ByteBuffer mDecompressedBuffer = ByteBuffer.allocateDirect(OpportunisticCompressor.MAX_BATCH_SIZE);
+    private final Deque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+    private int mAllocatedBuffers = 0;
+    // Connections waiting for a buffer to become available.
+    private final Deque<SelectionKey> mStarved = new ArrayDeque<>();
+    private volatile boolean mEnabled;
+
+    /** Main constructor. Binds the listening socket.
+     * @param daemon Binder to the ForwardingDaemon
+     * @param oppFaceMgr Opportunistic Face Manager used to identify the Face corresponding to each connection
+     * @param address IP address on which to listen
+     * @param port port number on which to listen
+     * @param groupPort port number on which the group Faces broadcast
+     * @throws IOException if the listening socket could not be opened
+     */
+    OpportunisticReceiver(OpportunisticDaemon.NodBinder daemon, OpportunisticFaceManager oppFaceMgr, String address, int port, int groupPort) throws IOException {
+        super("OppReceiver");
+        mDaemon = daemon;
+        mOppFaceManager = oppFaceMgr;
+        mLocalAddress = address;
+        mSelector = Selector.open();
+        mAcceptingSocket = ServerSocketChannel.open();
+        mDatagramSocket = DatagramChannel.open();
+        mGroupSocket = DatagramChannel.open();
+        try {
+            mAcceptingSocket.socket().bind(new InetSocketAddress(address, port));
+            mAcceptingSocket.configureBlocking(false);
+            mAcceptingSocket.register(mSelector, SelectionKey.OP_ACCEPT);
+            mDatagramSocket.socket().bind(new InetSocketAddress(address, port));
+            mDatagramSocket.configureBlocking(false);
+            mDatagramSocket.register(mSelector, SelectionKey.OP_READ);
+            // Broadcast datagrams are only delivered to sockets bound to the wildcard address.
+            mGroupSocket.socket().setReuseAddress(true);
+            mGroupSocket.socket().setBroadcast(true);
+            mGroupSocket.socket().bind(new InetSocketAddress(groupPort));
+            mGroupSocket.configureBlocking(false);
+            mGroupSocket.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            mAcceptingSocket.close();
+            mDatagramSocket.close();
+            mGroupSocket.close();
+            mSelector.close();
+            throw e;
+        }
+        mEnabled = true;
+    }
+
+    /** Stop the reception; the listening socket and all the connections are closed by the receiving thread. */
+    void terminate() {
+        mEnabled = false;
+        mSelector.wakeup();
+    }
+
+    /** Main loop encapsulating the logic of packet reception */
+    @Override
+    public void run() {
+        Log.d(TAG, "Accepting on " + mAcceptingSocket.socket().toString());
+        long lastIdleCheck = SystemClock.elapsedRealtime();
+        try {
+            while(mEnabled) {
+                mSelector.select(IDLE_CHECK_PERIOD);
+                Iterator<SelectionKey> ready = mSelector.selectedKeys().iterator();
+                while(ready.hasNext()) {
+                    SelectionKey key = ready.next();
+                    ready.remove();
+                    if(!key.isValid())
+                        continue;
+                    if(key.isAcceptable())
+                        accept();
+                    else if(key.channel() == mDatagramSocket)
+                        receiveDatagrams(mDatagramSocket, false);
+                    else if(key.channel() == mGroupSocket)
+                        receiveDatagrams(mGroupSocket, true);
+                    else if(key.isReadable())
+                        read(key);
+                }
+
+                long now = SystemClock.elapsedRealtime();
+                if(now - lastIdleCheck >= IDLE_CHECK_PERIOD) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.e(TAG, "Receiver went WRONG : " + e.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel connection = mAcceptingSocket.accept();
+            if(connection != null) {
+                Log.d(TAG, "Connection from " + connection.socket().toString());
+                connection.configureBlocking(false);
+                connection.register(mSelector, SelectionKey.OP_READ, new Connection(connection));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Connection went WRONG : " + e.getMessage());
+        }
+    }
+
+    /** Read the bytes available on a connection and dispatch all the complete packets to the daemon.
+     * @param key the key of the connection
+     */
+    private void read(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+        if(conn.buffer == null) {
+            conn.buffer = acquireBuffer();
+            if(conn.buffer == null) {
+                // No buffer available; stop reading this connection until one is returned.
+                key.interestOps(0);
+                mStarved.addLast(key);
+                return;
+            }
+        }
+
+        try {
+            int received = conn.channel.read(conn.buffer);
+            if(received < 0) {
+                Log.d(TAG, "Connection closed by " + conn.hostAddress);
+                close(key);
+                return;
+            }
+            conn.lastActivity = SystemClock.elapsedRealtime();
+            dispatch(conn);
+        } catch (IOException e) {
+            Log.e(TAG, "Connection went WRONG : " + e.getMessage());
+            close(key);
+        } catch (RuntimeException e) {
+            // Bytes which no parser anticipated only cost the connection which sent them, not the receiver.
+            Log.e(TAG, "Connection from " + conn.hostAddress + " sent unexpected bytes : " + e);
+            close(key);
+        }
+    }
+
+    /** Delimit all the complete packets received so far on a connection and pass them on to the Face for which they
+     * are intended. The identification is done with the UUID announced by the peer in its handshake or, failing that,
+     * by matching the remote IP with the UUID. Consecutive packets are passed on together, except for coded packets
+     * which are restored one at a time and compressed batches which are restored as a whole.
+     * @param conn the connection
+     * @throws IOException if the received bytes are not valid packets
+     */
+    private void dispatch(Connection conn) throws IOException {
+        ByteBuffer buffer = conn.buffer;
+        buffer.flip();
+        int start = buffer.position();
+        int length = TlvFraming.frameLength(buffer, start, buffer.limit());
+
+        // The first TLV of a connection may be a handshake carrying the UUID of the peer.
+        if(!conn.opened && length > 0 && start + length <= buffer.limit()) {
+            conn.opened = true;
+            if(OpportunisticHandshake.isHandshake(buffer, start)) {
+                conn.peerUuid = OpportunisticHandshake.decodePeerUuid(buffer, start, length);
+                Log.d(TAG, "Connection from " + conn.hostAddress + " identified as " + conn.peerUuid);
+                acceptFeatures(conn, OpportunisticHandshake.decodeFeatures(buffer, start, length));
+                start += length;
+                length = TlvFraming.frameLength(buffer, start, buffer.limit());
+            }
+        }
+
+        int end = start;
+        while(length > 0 && end + length <= buffer.limit()) {
+            if(OpportunisticNameCodec.isCoded(buffer, end)) {
+                if(conn.nameCodec == null)
+                    throw new TlvFraming.MalformedPacketException("Coded packet on a connection without the name codec");
+                deliver(conn, buffer, start, end - start);
+                mDecodedBuffer.clear();
+                conn.nameCodec.decode(buffer, end, length, mDecodedBuffer);
+                deliver(conn, mDecodedBuffer, 0, mDecodedBuffer.position());
+                start = end + length;
+            } else if(OpportunisticCompressor.isCompressed(buffer, end)) {
+                if(!conn.compression)
+                    throw new TlvFraming.MalformedPacketException("Compressed batch on a connection without compression");
+                deliver(conn, buffer, start, end - start);
+                int restored = OpportunisticCompressor.decompress(mInflater, buffer, end, length, mCompressed, mDecompressed);
+                mDecompressedBuffer.clear();
+                mDecompressedBuffer.put(mDecompressed, 0, restored);
+                deliver(conn, mDecompressedBuffer, 0, restored);
+                start = end + length;
+            } else if(conn.nameCodec != null)
+                conn.nameCodec.observe(buffer, end, length);
+            end += length;
+            length = TlvFraming.frameLength(buffer, end, buffer.limit());
+        }
+
+        deliver(conn, buffer, start, end - start);
+        buffer.position(end);
+        buffer.compact();
+
+        // A connection keeps its buffer only while it holds the beginning of a packet.
+        if(buffer.position() == 0) {
+            releaseBuffer(buffer);
+            conn.buffer = null;
+        }
+    }
+
+    /** Pass complete packets on to the Face of the peer which sent them.
+     * @param conn the connection on which the packets were received
+     * @param buffer buffer containing the packets
+     * @param offset position of the first byte of the first packet
+     * @param length total size of the packets
+     */
+    private void deliver(Connection conn, ByteBuffer buffer, int offset, int length) {
+        if(length == 0)
+            return;
+        long faceId = mOppFaceManager.identifyFaceId(conn.peerUuid, conn.hostAddress);
+        if(faceId != -1L) {
+            Log.d(TAG, "Received " + length + " bytes of complete packets for Face " + faceId);
+            mDaemon.receiveOnFace(faceId, buffer, offset, length);
+        } else
+            Log.w(TAG, "Dropping " + length + " bytes received from an unknown peer.");
+    }
+
+    /** Answer the features offered by a peer in its handshake with those supported locally.
+     * @param conn the connection which the peer opened
+     * @param offered features offered by the peer
+     * @throws IOException if the reply could not be written
+     */
+    private void acceptFeatures(Connection conn, long offered) throws IOException {
+        long accepted = offered & (OpportunisticHandshake.FEATURE_NAME_CODEC | OpportunisticHandshake.FEATURE_BATCH_COMPRESSION);
+        if(accepted == 0)
+            return;
+        // The reply is a few bytes long and fits in the empty send buffer of the connection.
+        ByteBuffer reply = OpportunisticHandshake.encodeReply(accepted);
+        conn.channel.write(reply);
+        if(reply.hasRemaining()) {
+            Log.w(TAG, "Failure to reply to the handshake of " + conn.peerUuid);
+            return;
+        }
+        if((accepted & OpportunisticHandshake.FEATURE_NAME_CODEC) != 0)
+            conn.nameCodec = new OpportunisticNameCodec();
+        conn.compression = (accepted & OpportunisticHandshake.FEATURE_BATCH_COMPRESSION) != 0;
+    }
+
+    /** Receive the pending datagrams. Each datagram holds exactly one packet.
+     * @param socket the socket on which the datagrams are received
+     * @param group whether the datagrams were broadcast to the group Face
+     */
+    private void receiveDatagrams(DatagramChannel socket, boolean group) {
+        for(int i = 0; i < DATAGRAMS_PER_ROUND; i++) {
+            mDatagramBuffer.clear();
+            SocketAddress sender;
+            try {
+                sender = socket.receive(mDatagramBuffer);
+            } catch (IOException e) {
+                Log.e(TAG, "Datagram reception went WRONG : " + e.getMessage());
+                return;
+            }
+            if(sender == null)
+                return;
+
+            mDatagramBuffer.flip();
+            String hostAddress = ((InetSocketAddress) sender).getAddress().getHostAddress();
+            // Our own broadcasts are looped back.
+            if(group && hostAddress.equals(mLocalAddress))
+                continue;
+            try {
+                int length = TlvFraming.frameLength(mDatagramBuffer, 0, mDatagramBuffer.limit());
+                if(length == 0 || length != mDatagramBuffer.limit()) {
+                    Log.w(TAG, "Dropping malformed datagram of " + mDatagramBuffer.limit() + " bytes from " + hostAddress);
+                    continue;
+                }
+            } catch (TlvFraming.MalformedPacketException e) {
+                Log.w(TAG, "Dropping malformed datagram from " + hostAddress + " : " + e.getMessage());
+                continue;
+            }
+
+            long faceId = group ? mOppFaceManager.getGroupFaceId() : mOppFaceManager.identifyFaceId(null, hostAddress);
+            if(faceId != -1L)
+                mDaemon.receiveOnFace(faceId, mDatagramBuffer, 0, mDatagramBuffer.limit());
+            else
+                Log.w(TAG, "Dropping datagram received from unknown peer " + hostAddress);
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for(SelectionKey key : mSelector.keys()) {
+            Object attachment = key.attachment();
+            if(key.isValid() && attachment instanceof Connection) {
+                Connection conn = (Connection) attachment;
+                if(now - conn.lastActivity > IDLE_TIMEOUT) {
+                    Log.d(TAG, "Closing idle connection from " + conn.hostAddress);
+                    close(key);
+                }
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+        key.cancel();
+        mStarved.remove(key);
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failure to close the connection " + e.getMessage());
+        }
+        if(conn.buffer != null) {
+            releaseBuffer(conn.buffer);
+            conn.buffer = null;
+        }
+    }
+
+    private void shutdown() {
+        try {
+            for(SelectionKey key : mSelector.keys())
+                if(key.attachment() instanceof Connection)
+                    close(key);
+            mAcceptingSocket.close();
+            mDatagramSocket.close();
+            mGroupSocket.close();
+            mSelector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            Log.w(TAG, "Failure to close the receiver " + e.getMessage());
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = mFreeBuffers.pollFirst();
+        if(buffer == null && mAllocatedBuffers < BUFFER_POOL_SIZE) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            mAllocatedBuffers++;
+        }
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        mFreeBuffers.addLast(buffer);
+        // Resume reading the connection which waited the longest.
+        SelectionKey starved = mStarved.pollFirst();
+        if(starved != null && starved.isValid())
+            starved.interestOps(SelectionKey.OP_READ);
+    }
+
+    /** State associated to each connection accepted by the receiver */
+    private static class Connection {
+        final SocketChannel channel;
+        final String hostAddress;
+        // Whether the first TLV of the connection has been received, and the UUID it announced if it was a handshake.
+        boolean opened;
+        String peerUuid;
+        // Set when the peer was allowed to code the Names of its packets.
+        OpportunisticNameCodec nameCodec;
+        // Set when the peer was allowed to compress its batches.
+        boolean compression;
+        ByteBuffer buffer;
+        long lastActivity;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.hostAddress = channel.socket().getInetAddress().getHostAddress();
+            this.lastActivity = SystemClock.elapsedRealtime();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ *  @version 1.0
+ * COPYRIGHTS COPELABS/ULHT, LGPLv3.0
+ * Implementation of the worker used by an Opportunistic Channel to perform its transmissions.
+ */
+package pt.ulusofona.copelabs.ndn.android.umobile;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Each OpportunisticChannel owns one OpportunisticSender; a single worker thread which executes the transmissions
+ * of that channel in the order they were submitted. A slow peer therefore only delays its own transmissions and
+ * the completions do not depend on the main thread being available.
+ */
+class OpportunisticSender {
+    private final ThreadPoolExecutor mExecutor;
+    private final long mCreationTime = SystemClock.elapsedRealtimeNanos();
+    private final AtomicLong mBusyTime = new AtomicLong();
+
+    /** Main constructor
+     * @param name name used for the worker thread
+     * @param onTerminated run once the sender was shut down and its last transmission is over
+     */
+    OpportunisticSender(final String name, final Runnable onTerminated) {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "OppSender-" + name);
+                }
+            }) {
+            @Override
+            protected void terminated() {
+                onTerminated.run();
+            }
+        };
+    }
+
+    /** Queue a transmission for execution by the worker.
+     * @param task the transmission to perform
+     * @return false if the sender was shut down, in which case the transmission is not performed
+     */
+    boolean submit(final Runnable task) {
+        if(mExecutor.isShutdown())
+            return false;
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    try {
+                        task.run();
+                    } finally {
+                        mBusyTime.addAndGet(SystemClock.elapsedRealtimeNanos() - start);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /** Stop accepting new transmissions. Transmissions already queued are still performed, after which the sender
+     * terminates.
+     */
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /** @return the number of transmissions waiting for the worker */
+    int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /** @return the fraction of time the worker spent transmitting since its creation, between 0 and 1 */
+    double getUtilisation() {
+        long elapsed = SystemClock.elapsedRealtimeNanos() - mCreationTime;
+        return elapsed > 0 ? (double) mBusyTime.get() / elapsed : 0.0;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ *  @version 1.0
+ * COPYRIGHTS COPELABS/ULHT, LGPLv3.0
+ * Utility functions used to delimit NDN packets within the byte streams exchanged between NDN-Opp peers.
+ */
+package pt.ulusofona.copelabs.ndn.android.umobile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** NDN packets are TLV-encoded and therefore self-delimiting; the TLV-TYPE and TLV-LENGTH found at the start of
+ * each packet are enough to know where it ends. This class parses those headers so that several packets can be
+ * transferred back-to-back over a single connection.
+ */
+class TlvFraming {
+    // Matches the constant from ndn-cxx/encoding/tlv.hpp
+    static final int MAX_NDN_PACKET_SIZE = 8800;
+
+    /** Thrown when the stream does not contain a valid TLV packet. */
+    static class MalformedPacketException extends IOException {
+        MalformedPacketException(String message) {
+            super(message);
+        }
+    }
+
+    /** Determine the size of the TLV packet starting at a given position of a buffer.
+     * @param buffer buffer containing the received bytes
+     * @param offset position of the first byte of the packet
+     * @param limit position following the last received byte
+     * @return the size of the packet (header included), or 0 if not enough bytes were received to know it
+     * @throws MalformedPacketException if the packet exceeds MAX_NDN_PACKET_SIZE
+     */
+    static int frameLength(ByteBuffer buffer, int offset, int limit) throws MalformedPacketException {
+        if(offset >= limit)
+            return 0;
+        int typeSize = 1 + varNumberTailSize(buffer.get(offset) & 0xFF);
+        if(typeSize == 9)
+            throw new MalformedPacketException("VAR-NUMBER too large");
+        if(offset + typeSize >= limit)
+            return 0;
+
+        int lengthOffset = offset + typeSize;
+        int lengthSize = 1 + varNumberTailSize(buffer.get(lengthOffset) & 0xFF);
+        if(lengthSize == 9)
+            throw new MalformedPacketException("VAR-NUMBER too large");
+        if(lengthOffset + lengthSize > limit)
+            return 0;
+
+        long length = decodeVarNumber(buffer, lengthOffset);
+        int headerSize = typeSize + lengthSize;
+        if(length > MAX_NDN_PACKET_SIZE - headerSize)
+            throw new MalformedPacketException("Packet of " + length + " bytes exceeds " + MAX_NDN_PACKET_SIZE);
+        return headerSize + (int) length;
+    }
+
+    /** Decode a TLV VAR-NUMBER.
+     * @param buffer buffer containing the encoded number
+     * @param offset position of the first octet of the number
+     * @return the decoded value
+     */
+    static long decodeVarNumber(ByteBuffer buffer, int offset) {
+        int first = buffer.get(offset) & 0xFF;
+        int octets = varNumberTailSize(first);
+        if(octets == 0)
+            return first;
+
+        long value = 0;
+        for(int i = 1; i <= octets; i++)
+            value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+        return value;
+    }
+
+    /** Decode a TLV VAR-NUMBER which must lie entirely before a limit, such as the end of the enclosing TLV.
+     * @param buffer buffer containing the received bytes
+     * @param offset position of the first octet of the number
+     * @param limit position following the last byte the number may occupy, at most the limit of the buffer
+     * @param value array whose first element receives the decoded value
+     * @return the position following the number
+     * @throws MalformedPacketException if the number does not lie entirely before the limit
+     */
+    static int readVarNumber(ByteBuffer buffer, int offset, int limit, long[] value) throws MalformedPacketException {
+        if(limit > buffer.limit())
+            throw new MalformedPacketException("TLV exceeds the " + buffer.limit() + " received bytes");
+        if(offset >= limit)
+            throw new MalformedPacketException("Truncated VAR-NUMBER");
+        int size = 1 + varNumberTailSize(buffer.get(offset) & 0xFF);
+        if(size > limit - offset)
+            throw new MalformedPacketException("Truncated VAR-NUMBER");
+        value[0] = decodeVarNumber(buffer, offset);
+        return offset + size;
+    }
+
+    /** Number of octets following the first one in a TLV VAR-NUMBER.
+     * @param first first octet of the VAR-NUMBER
+     * @return 0, 2, 4 or 8
+     */
+    static int varNumberTailSize(int first) {
+        if(first < 253) return 0;
+        else if(first == 253) return 2;
+        else if(first == 254) return 4;
+        else return 8;
+    }
+}
@@ -6,13 +6,110 @@
 
 #include "daemon/fw/face-table.hpp"
 
+#include "core/config-file.hpp"
+
 #include "ndn-cxx/util/face-uri.hpp"
 
+#include <cstdlib>
+
 namespace nfd {
 
 NFD_LOG_INIT("OppFactory");
 NFD_REGISTER_PROTOCOL_FACTORY(OppFactory);
 
+// Smallest MTU leaving room for a useful fragment once the NDNLP headers are added.
+static const size_t MIN_MTU = 256;
+
+// class
+// {
+//   id interest ; name of the class in the logs
+//   prefix / ; Name prefix of the packets of the class
+//   type interest ; interest, data or any
+//   priority 1 ; classes with a lower value are served first
+//   weight 1 ; share of the link among the classes with the same priority
+// }
+static face::OppTrafficClass parseTrafficClass(const ConfigSection& section) {
+    face::OppTrafficClass trafficClass;
+    trafficClass.id.clear();
+    for(const auto& pair : section) {
+        const std::string& key = pair.first;
+        if(key == "id") {
+            trafficClass.id = pair.second.get_value<std::string>();
+        } else if(key == "prefix") {
+            try {
+                trafficClass.prefix = Name(pair.second.get_value<std::string>());
+            } catch (const Name::Error&) {
+                BOOST_THROW_EXCEPTION(ConfigFile::Error("Invalid face_system.opp.class.prefix " +
+                                                        pair.second.get_value<std::string>()));
+            }
+        } else if(key == "type") {
+            const std::string type = pair.second.get_value<std::string>();
+            if(type == "any")
+                trafficClass.type = face::OppTrafficClass::PacketType::ANY;
+            else if(type == "interest")
+                trafficClass.type = face::OppTrafficClass::PacketType::INTEREST;
+            else if(type == "data")
+                trafficClass.type = face::OppTrafficClass::PacketType::DATA;
+            else
+                BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.class.type must be interest, data or any"));
+        } else if(key == "priority") {
+            size_t priority = ConfigFile::parseNumber<size_t>(pair, "face_system.opp.class");
+            if(priority > std::numeric_limits<uint8_t>::max())
+                BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.class.priority must not exceed " +
+                                                        to_string(std::numeric_limits<uint8_t>::max())));
+            trafficClass.priority = static_cast<uint8_t>(priority);
+        } else if(key == "weight") {
+            trafficClass.weight = ConfigFile::parseNumber<size_t>(pair, "face_system.opp.class");
+            if(trafficClass.weight == 0)
+                BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.class.weight must be positive"));
+        } else
+            BOOST_THROW_EXCEPTION(ConfigFile::Error("Unrecognized option face_system.opp.class." + key));
+    }
+    if(trafficClass.id.empty())
+        trafficClass.id = trafficClass.prefix.toUri();
+    return trafficClass;
+}
+
+// push
+// {
+//   prefix /emergency ; Data pushed to every peer at the start of each contact (repeatable)
+//   batch_packets 16 ; maximum number of Data pushed at once
+//   batch_interval 100 ; milliseconds between two batches
+//   queue_bytes 262144 ; pushing pauses while the queue of the Face holds this many bytes, or half of queue_bytes
+//   summary no ; whether peers exchange a summary of the Names they hold under the prefixes when they meet
+//   summary_wait 1000 ; milliseconds the pushes wait for the summary of the peer
+// }
+static face::OppPushEngine::Options parsePushOptions(const ConfigSection& section) {
+    face::OppPushEngine::Options options;
+    for(const auto& pair : section) {
+        const std::string& key = pair.first;
+        if(key == "prefix") {
+            try {
+                options.prefixes.push_back(Name(pair.second.get_value<std::string>()));
+            } catch (const Name::Error&) {
+                BOOST_THROW_EXCEPTION(ConfigFile::Error("Invalid face_system.opp.push.prefix " +
+                                                        pair.second.get_value<std::string>()));
+            }
+        } else if(key == "batch_packets") {
+            options.batchPackets = ConfigFile::parseNumber<size_t>(pair, "face_system.opp.push");
+            if(options.batchPackets == 0)
+                BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.push.batch_packets must be positive"));
+        } else if(key == "batch_interval") {
+            options.batchInterval = time::milliseconds(ConfigFile::parseNumber<size_t>(pair, "face_system.opp.push"));
+        } else if(key == "queue_bytes") {
+            options.queueBytes = ConfigFile::parseNumber<size_t>(pair, "face_system.opp.push");
+            if(options.queueBytes == 0)
+                BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.push.queue_bytes must be positive"));
+        } else if(key == "summary") {
+            options.summary = ConfigFile::parseYesNo(pair, "face_system.opp.push");
+        } else if(key == "summary_wait") {
+            options.summaryWait = time::milliseconds(ConfigFile::parseNumber<size_t>(pair, "face_system.opp.push"));
+        } else
+            BOOST_THROW_EXCEPTION(ConfigFile::Error("Unrecognized option face_system.opp.push." + key));
+    }
+    return options;
+}
+
     const std::string& OppFactory::getId() {
       static std::string id("opp");
       return id;
@@ -20,7 +117,192 @@ NFD_REGISTER_PROTOCOL_FACTORY(OppFactory);
 
     void OppFactory::processConfig(OptionalConfigSection configSection,
                                    FaceSystem::ConfigContext& context) {
+        // opp
+        // {
+        //   window 8 ; number of packets handed to the OpportunisticChannel before completion
+        //   batch_packets 16 ; maximum number of packets handed to the OpportunisticChannel at once
+        //   batch_bytes 65536 ; maximum number of bytes handed to the OpportunisticChannel at once
+        //   ring_bytes 262144 ; size of the ring through which packets are handed to the OpportunisticChannel
+        //   native_sockets no ; whether packets are written by NFD to its own connections instead of the OpportunisticChannel
+        //   datagrams no ; whether the Faces of the peers send small packets as UDP datagrams, like opp://<uuid>/udp Faces
+        //   datagram_threshold 1400 ; in datagram mode, maximum size of the packets sent as UDP datagrams
+        //   mtu 8800 ; packets larger than this are fragmented by NDNLP
+        //   group_prefix /ndn/multicast ; prefix delivered by the group Face alone while it is UP (repeatable)
+        //   reliability no ; whether packets not acknowledged by the peer are sent again at its next contact
+        //   name_codec no ; whether Names are coded against the Names recently sent to the peer (native sockets only)
+        //   retry_delay 250 ; milliseconds before the first retry of a failed send, doubled after each failure
+        //   retry_max_delay 30000 ; maximum milliseconds between retries
+        //   retry_budget 8 ; number of failed sends after which a packet is dropped
+        //   retry_skip_after 3 ; number of failed sends after which the head of the queue is moved to its back (0 never)
+        //   carry_time 0 ; seconds after which a queued packet is dropped, if its lifetime does not expire first (0 never)
+        //   class { ... } ; traffic class, see parseTrafficClass; a packet belongs to the first class it matches (repeatable)
+        //   reserved_window 0 ; part of the window left to the classes with the lowest priority value
+        //   queue_bytes 0 ; maximum number of bytes queued by each Face (0 no limit)
+        //   total_queue_bytes 0 ; maximum number of bytes queued by all the Faces together (0 no limit)
+        //   drop_policy tail ; tail, head or codel; which packets are dropped from the least urgent class
+        //   codel_target 500 ; with codel, milliseconds packets may wait during a contact
+        //   codel_interval 5000 ; with codel, milliseconds packets may wait longer than the target before dropping starts
+        //   persistent_queue no ; whether the packets queued for each peer are persisted under $HOME/opp-queue
+        //   persistent_queue_bytes 67108864 ; maximum number of bytes persisted for each peer
+        //   persistent_segment_bytes 1048576 ; size of the files the persisted packets are appended to
+        //   memory_queue_bytes 1048576 ; with persistent_queue, bytes of queued packets also kept in memory
+        //   push { ... } ; Data pushed from the Content Store to the peers, see parsePushOptions
+        // }
         providedSchemes.insert("opp");
+        providedSchemes.insert("oppmc");
+
+        if(!configSection)
+            return;
+
+        face::OppTransport::Options options;
+        face::OppPushEngine::Options pushOptions;
+        std::vector<Name> groupPrefixes;
+        size_t totalQueueBytes = 0;
+        bool isPersistent = false;
+        for(const auto& pair : *configSection) {
+            const std::string& key = pair.first;
+            if(key == "window") {
+                options.window = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+                if(options.window == 0)
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.window must be positive"));
+            } else if(key == "batch_packets") {
+                options.batchPackets = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+                if(options.batchPackets == 0)
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.batch_packets must be positive"));
+            } else if(key == "batch_bytes") {
+                options.batchBytes = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+                if(options.batchBytes == 0)
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.batch_bytes must be positive"));
+            } else if(key == "ring_bytes") {
+                options.ringBytes = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+                if(options.ringBytes < ndn::MAX_NDN_PACKET_SIZE)
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.ring_bytes must be at least " +
+                                                            to_string(ndn::MAX_NDN_PACKET_SIZE)));
+            } else if(key == "datagrams") {
+                options.datagrams = ConfigFile::parseYesNo(pair, "face_system.opp");
+            } else if(key == "datagram_threshold") {
+                options.datagramThreshold = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+                if(options.datagramThreshold > ndn::MAX_NDN_PACKET_SIZE)
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.datagram_threshold must not exceed " +
+                                                            to_string(ndn::MAX_NDN_PACKET_SIZE)));
+            } else if(key == "mtu") {
+                options.mtu = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+                if(options.mtu < MIN_MTU || options.mtu > ndn::MAX_NDN_PACKET_SIZE)
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.mtu must be between " + to_string(MIN_MTU) +
+                                                            " and " + to_string(ndn::MAX_NDN_PACKET_SIZE)));
+            } else if(key == "group_prefix") {
+                try {
+                    groupPrefixes.push_back(Name(pair.second.get_value<std::string>()));
+                } catch (const Name::Error&) {
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("Invalid face_system.opp.group_prefix " +
+                                                            pair.second.get_value<std::string>()));
+                }
+            } else if(key == "native_sockets") {
+                options.nativeSockets = ConfigFile::parseYesNo(pair, "face_system.opp");
+            } else if(key == "reliability") {
+                options.reliability = ConfigFile::parseYesNo(pair, "face_system.opp");
+            } else if(key == "name_codec") {
+                options.nameCodec = ConfigFile::parseYesNo(pair, "face_system.opp");
+            } else if(key == "retry_delay") {
+                options.retryDelay = time::milliseconds(ConfigFile::parseNumber<size_t>(pair, "face_system.opp"));
+                if(options.retryDelay == time::milliseconds::zero())
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.retry_delay must be positive"));
+            } else if(key == "retry_max_delay") {
+                options.maxRetryDelay = time::milliseconds(ConfigFile::parseNumber<size_t>(pair, "face_system.opp"));
+            } else if(key == "retry_budget") {
+                options.retryBudget = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+                if(options.retryBudget == 0)
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.retry_budget must be positive"));
+            } else if(key == "retry_skip_after") {
+                options.skipAfter = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+            } else if(key == "carry_time") {
+                options.carryTime = time::seconds(ConfigFile::parseNumber<size_t>(pair, "face_system.opp"));
+            } else if(key == "class") {
+                options.trafficClasses.push_back(parseTrafficClass(pair.second));
+            } else if(key == "reserved_window") {
+                options.reservedWindow = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+            } else if(key == "queue_bytes") {
+                options.queueBytes = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+            } else if(key == "total_queue_bytes") {
+                totalQueueBytes = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+            } else if(key == "drop_policy") {
+                const std::string policy = pair.second.get_value<std::string>();
+                if(policy == "tail")
+                    options.dropPolicy = face::OppDropPolicy::TAIL;
+                else if(policy == "head")
+                    options.dropPolicy = face::OppDropPolicy::HEAD;
+                else if(policy == "codel")
+                    options.dropPolicy = face::OppDropPolicy::CODEL;
+                else
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.drop_policy must be tail, head or codel"));
+            } else if(key == "codel_target") {
+                options.codelTarget = time::milliseconds(ConfigFile::parseNumber<size_t>(pair, "face_system.opp"));
+                if(options.codelTarget == time::milliseconds::zero())
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.codel_target must be positive"));
+            } else if(key == "codel_interval") {
+                options.codelInterval = time::milliseconds(ConfigFile::parseNumber<size_t>(pair, "face_system.opp"));
+                if(options.codelInterval == time::milliseconds::zero())
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.codel_interval must be positive"));
+            } else if(key == "persistent_queue") {
+                isPersistent = ConfigFile::parseYesNo(pair, "face_system.opp");
+            } else if(key == "persistent_queue_bytes") {
+                options.logBytes = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+            } else if(key == "persistent_segment_bytes") {
+                options.logSegmentBytes = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+                // A segment holds at least one packet of the largest size.
+                if(options.logSegmentBytes < 2 * ndn::MAX_NDN_PACKET_SIZE)
+                    BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.persistent_segment_bytes must be at least " +
+                                                            to_string(2 * ndn::MAX_NDN_PACKET_SIZE)));
+            } else if(key == "memory_queue_bytes") {
+                options.memoryQueueBytes = ConfigFile::parseNumber<size_t>(pair, "face_system.opp");
+            } else if(key == "push") {
+                pushOptions = parsePushOptions(pair.second);
+            } else
+                BOOST_THROW_EXCEPTION(ConfigFile::Error("Unrecognized option face_system.opp." + key));
+        }
+
+        if(options.maxRetryDelay < options.retryDelay)
+            BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.retry_max_delay must not be less than retry_delay"));
+
+        // A Face must be able to queue at least one packet of the largest size.
+        if(options.queueBytes > 0 && options.queueBytes < ndn::MAX_NDN_PACKET_SIZE)
+            BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.queue_bytes must be 0 or at least " +
+                                                    to_string(ndn::MAX_NDN_PACKET_SIZE)));
+        if(totalQueueBytes > 0 && totalQueueBytes < ndn::MAX_NDN_PACKET_SIZE)
+            BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.total_queue_bytes must be 0 or at least " +
+                                                    to_string(ndn::MAX_NDN_PACKET_SIZE)));
+
+        if(isPersistent) {
+            if(options.logBytes < options.logSegmentBytes)
+                BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.persistent_queue_bytes must not be less than "
+                                                        "persistent_segment_bytes"));
+            // Set by the JNI bridge to the files directory of the app.
+            const char* home = std::getenv("HOME");
+            if(home == nullptr)
+                BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.persistent_queue requires HOME to be set"));
+            options.logDirectory = std::string(home) + "/opp-queue";
+        }
+
+        // Lost datagrams are only sent again by the reliability.
+        if(options.datagrams && !options.reliability)
+            BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.datagrams requires reliability"));
+
+        if(options.reservedWindow >= options.window)
+            BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.reserved_window must be less than window"));
+
+        // The sequence numbers and Acks take room in every packet.
+        if(options.reliability && options.mtu < MIN_MTU + face::OppReliability::HEADROOM)
+            BOOST_THROW_EXCEPTION(ConfigFile::Error("face_system.opp.mtu must be at least " +
+                                                    to_string(MIN_MTU + face::OppReliability::HEADROOM) +
+                                                    " with reliability"));
+
+        if(!context.isDryRun) {
+            m_transportOptions = options;
+            m_pushOptions = pushOptions;
+            m_budget->capacity = totalQueueBytes;
+            if(!groupPrefixes.empty())
+                m_group->prefixes = groupPrefixes;
+        }
     }
 
     void OppFactory::createFace(const FaceUri& uri,
@@ -30,14 +312,22 @@ NFD_REGISTER_PROTOCOL_FACTORY(OppFactory);
                                 const FaceCreationFailedCallback& onFailure)
     {
         NFD_LOG_INFO("CreateFace : " << uri);
-        unique_ptr<face::GenericLinkService> linkService = make_unique<face::GenericLinkService>();
-        unique_ptr<face::OppTransport> transport = make_unique<face::OppTransport>(uri);
+        // Packets larger than the MTU of the transport are sent as NDNLP fragments, each queued on its own.
+        face::GenericLinkService::Options linkOptions;
+        linkOptions.allowFragmentation = true;
+        linkOptions.allowReassembly = true;
+        unique_ptr<face::GenericLinkService> linkService = make_unique<face::GenericLinkService>(linkOptions);
+        unique_ptr<face::OppTransport> transport = make_unique<face::OppTransport>(uri, m_transportOptions, m_group, m_budget);
         shared_ptr<Face> face = make_shared<Face>(std::move(linkService), std::move(transport));
 
         //TODO: set the correct Local URI
         onCreated(face);
     }
 
+    const face::OppPushEngine::Options& OppFactory::getPushOptions() const {
+        return m_pushOptions;
+    }
+
     std::vector<shared_ptr<const Channel>> OppFactory::getChannels() const {
         std::vector<shared_ptr<const Channel>> channels;
         channels.reserve(m_channels.size());
@@ -2,6 +2,8 @@
 #define COPELABS_NFD_ANDROID_OPP_FACTORY_HPP
 
 #include "daemon/face/face.hpp"
+#include "daemon/face/opp-push-engine.hpp"
+#include "daemon/face/opp-transport.hpp"
 #include "daemon/face/protocol-factory.hpp"
 
 #include "ndn-cxx/util/face-uri.hpp"
@@ -24,8 +26,14 @@ public:
 
     virtual std::vector<shared_ptr<const Channel>> getChannels() const override;
 
+    const face::OppPushEngine::Options& getPushOptions() const;
+
 private:
     std::map<long, shared_ptr<Channel>> m_channels;
+    face::OppTransport::Options m_transportOptions;
+    face::OppPushEngine::Options m_pushOptions;
+    shared_ptr<face::OppGroupState> m_group = make_shared<face::OppGroupState>();
+    shared_ptr<face::OppQueueBudget> m_budget = make_shared<face::OppQueueBudget>();
 };
 
 } // namespace nfd
@@ -0,0 +1,121 @@
+#include "opp-name-codec.hpp"
+#include "opp-socket-link.hpp"
+
+#include "ndn-cxx/encoding/encoding-buffer.hpp"
+#include "ndn-cxx/encoding/tlv.hpp"
+#include "ndn-cxx/lp/tlv.hpp"
+
+#include <algorithm>
+
+namespace nfd {
+namespace face {
+
+const size_t OppNameCodec::DICTIONARY_SIZE = 16;
+
+// Coding a packet costs a few bytes of headers; shorter matches are not worth it.
+static const size_t MIN_SHARED_LENGTH = 8;
+
+static bool readHeader(const uint8_t*& position, const uint8_t* end, uint64_t& type, uint64_t& length) {
+    return ndn::tlv::readVarNumber(position, end, type) && ndn::tlv::readVarNumber(position, end, length);
+}
+
+bool findNameValue(const uint8_t* wire, size_t size, size_t& offset, size_t& length, uint32_t* networkType) {
+    const uint8_t* position = wire;
+    const uint8_t* end = wire + size;
+    uint64_t type, valueLength;
+    if(!readHeader(position, end, type, valueLength))
+        return false;
+
+    if(type == ndn::lp::tlv::LpPacket) {
+        // Only the first fragment of a packet starts with its Name.
+        bool hasFragment = false;
+        while(!hasFragment && readHeader(position, end, type, valueLength)) {
+            if(type == ndn::lp::tlv::Fragment)
+                hasFragment = true;
+            else if(type == ndn::lp::tlv::FragIndex && valueLength > 0 && position < end && *position != 0)
+                return false;
+            else if(valueLength > static_cast<uint64_t>(end - position))
+                return false;
+            else
+                position += valueLength;
+        }
+        if(!hasFragment || !readHeader(position, end, type, valueLength))
+            return false;
+    }
+
+    // The length of the Interest or Data may exceed the size of a fragment; only its Name has to be complete.
+    if(type != ndn::tlv::Interest && type != ndn::tlv::Data)
+        return false;
+    uint32_t packetType = static_cast<uint32_t>(type);
+    if(!readHeader(position, end, type, valueLength) || type != ndn::tlv::Name
+       || valueLength > static_cast<uint64_t>(end - position))
+        return false;
+
+    offset = position - wire;
+    length = valueLength;
+    if(networkType != nullptr)
+        *networkType = packetType;
+    return true;
+}
+
+Block OppNameCodec::encode(const Block& packet) {
+    size_t offset, length;
+    if(!findNameValue(packet.wire(), packet.size(), offset, length))
+        return packet;
+    const uint8_t* name = packet.wire() + offset;
+
+    size_t entry = 0;
+    size_t shared = 0;
+    for(size_t i = 0; i < m_dictionary.size(); i++) {
+        const std::vector<uint8_t>& candidate = m_dictionary[i];
+        size_t common = std::mismatch(name, name + std::min(length, candidate.size()), candidate.begin()).first - name;
+        if(common > shared) {
+            entry = i;
+            shared = common;
+        }
+    }
+
+    // The first coded packet tells the peer to start following the dictionary, even if nothing is shared.
+    Block coded = packet;
+    if(shared >= MIN_SHARED_LENGTH || !m_isStarted) {
+        ndn::encoding::EncodingBuffer buffer(packet.size() + 16, 0);
+        buffer.prependByteArray(name + shared, packet.size() - offset - shared);
+        buffer.prependByteArray(packet.wire(), offset);
+        buffer.prependVarNumber(shared);
+        buffer.prependVarNumber(entry);
+        buffer.prependVarNumber(buffer.size());
+        buffer.prependVarNumber(OPP_TLV_CODED_PACKET);
+        // The receiver rejects anything larger than a packet.
+        if(buffer.size() <= ndn::MAX_NDN_PACKET_SIZE) {
+            coded = buffer.block();
+            m_isStarted = true;
+        }
+    }
+
+    if(m_isStarted)
+        learn(name, length);
+    return coded;
+}
+
+void OppNameCodec::reset() {
+    m_dictionary.clear();
+    m_oldest = 0;
+    m_isStarted = false;
+}
+
+// Identical Names are kept once, so that a retransmission does not evict a useful entry.
+void OppNameCodec::learn(const uint8_t* name, size_t length) {
+    for(const std::vector<uint8_t>& entry : m_dictionary)
+        if(entry.size() == length && std::equal(entry.begin(), entry.end(), name))
+            return;
+
+    if(m_dictionary.size() < DICTIONARY_SIZE)
+        m_dictionary.emplace_back(name, name + length);
+    else {
+        m_dictionary[m_oldest].assign(name, name + length);
+        m_oldest = (m_oldest + 1) % DICTIONARY_SIZE;
+    }
+}
+
+} // namespace face
+} // namespace nfd
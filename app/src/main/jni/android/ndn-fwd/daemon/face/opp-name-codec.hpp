@@ -0,0 +1,50 @@
+#ifndef COPELABS_NFD_ANDROID_OPP_NAME_CODEC_HPP
+#define COPELABS_NFD_ANDROID_OPP_NAME_CODEC_HPP
+
+#include <vector>
+
+#include "core/common.hpp"
+
+namespace nfd {
+namespace face {
+
+// The OppNameCodec shrinks the Names of the packets written on a connection by encoding each of them as a delta against
+// a small dictionary of the Names recently written on the same connection. Packets sent in a burst, such as the
+// segments of a Data or a collection pushed under a common prefix, mostly repeat the same long prefix.
+//
+// A coded packet is the original packet with the leading bytes of its Name value removed:
+// OppCodedPacket := OPP-CODED-PACKET-TYPE TLV-LENGTH DictionaryEntry SharedLength *OCTET
+// where DictionaryEntry (VAR-NUMBER) designates the entry providing the SharedLength (VAR-NUMBER) removed bytes. The
+// TLV-LENGTHs of the original packet are left untouched so that the receiver restores it byte for byte.
+//
+// Both ends of the connection start from an empty dictionary when the first coded packet is written; from then on, the
+// Name of every packet written, coded or not, is inserted in the dictionary in order, replacing the oldest entry.
+class OppNameCodec {
+public:
+    // Number of entries of the dictionary.
+    static const size_t DICTIONARY_SIZE;
+
+    // Returns the bytes to write for a packet; either the packet itself or its coded form.
+    Block encode(const Block& packet);
+    // Forgets the dictionary; used on each new connection.
+    void reset();
+
+private:
+    void learn(const uint8_t* name, size_t length);
+
+private:
+    std::vector<std::vector<uint8_t>> m_dictionary;
+    size_t m_oldest = 0;
+    // Whether the first coded packet was written, from which the peer starts following the dictionary.
+    bool m_isStarted = false;
+};
+
+// Locates the value of the Name of the Interest or Data carried by a packet, possibly as the first fragment of an
+// LpPacket. Only the TLV headers preceding the Name are inspected, so the rest of the packet needs not be present.
+// The TLV-TYPE of the Interest or Data is stored in networkType when given.
+bool findNameValue(const uint8_t* wire, size_t size, size_t& offset, size_t& length, uint32_t* networkType = nullptr);
+
+} // namespace face
+} // namespace nfd
+
+#endif //COPELABS_NFD_ANDROID_OPP_NAME_CODEC_HPP
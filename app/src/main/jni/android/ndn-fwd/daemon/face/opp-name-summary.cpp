@@ -0,0 +1,87 @@
+#include "opp-name-summary.hpp"
+#include "opp-socket-link.hpp"
+
+#include "ndn-cxx/encoding/block-helpers.hpp"
+
+#include <algorithm>
+
+namespace nfd {
+namespace face {
+
+// About 9.6 bits per Name and 7 hashes give 1% of false positives.
+static const size_t HASH_COUNT = 7;
+static const size_t MIN_FILTER_BYTES = 8;
+// Leaves room in a Data for its Name, signature and the other fields of the summary.
+static const size_t MAX_FILTER_BYTES = 4096;
+
+const size_t OppNameSummary::MAX_NAMES = (MAX_FILTER_BYTES - 1) * 5 / 6;
+
+static uint64_t hashName(const Name& name) {
+    const Block& wire = name.wireEncode();
+    uint64_t hash = 14695981039346656037ULL;
+    for(size_t i = 0; i < wire.size(); i++) {
+        hash ^= wire.wire()[i];
+        hash *= 1099511628211ULL;
+    }
+    return hash;
+}
+
+OppNameSummary::OppNameSummary(size_t expectedNames)
+    : m_bits(std::min(std::max(expectedNames * 6 / 5 + 1, MIN_FILTER_BYTES), MAX_FILTER_BYTES), 0),
+      m_hashCount(HASH_COUNT) {
+}
+
+void OppNameSummary::insert(const Name& name) {
+    uint64_t hash = hashName(name);
+    uint64_t h1 = static_cast<uint32_t>(hash);
+    uint64_t h2 = (hash >> 32) | 1;
+    size_t bitCount = m_bits.size() * 8;
+    for(size_t i = 0; i < m_hashCount; i++) {
+        size_t bit = (h1 + i * h2) % bitCount;
+        m_bits[bit / 8] |= static_cast<uint8_t>(1 << (bit % 8));
+    }
+}
+
+bool OppNameSummary::contains(const Name& name) const {
+    uint64_t hash = hashName(name);
+    uint64_t h1 = static_cast<uint32_t>(hash);
+    uint64_t h2 = (hash >> 32) | 1;
+    size_t bitCount = m_bits.size() * 8;
+    for(size_t i = 0; i < m_hashCount; i++) {
+        size_t bit = (h1 + i * h2) % bitCount;
+        if((m_bits[bit / 8] & (1 << (bit % 8))) == 0)
+            return false;
+    }
+    return true;
+}
+
+Block OppNameSummary::wireEncode() const {
+    Block wire(OPP_TLV_NAME_SUMMARY);
+    wire.push_back(ndn::encoding::makeNonNegativeIntegerBlock(OPP_TLV_HASH_COUNT, m_hashCount));
+    wire.push_back(ndn::encoding::makeBinaryBlock(OPP_TLV_FILTER_BITS, m_bits.data(), m_bits.size()));
+    wire.encode();
+    return wire;
+}
+
+void OppNameSummary::wireDecode(const Block& wire) {
+    if(wire.type() != OPP_TLV_NAME_SUMMARY)
+        BOOST_THROW_EXCEPTION(Error("Not an OppNameSummary"));
+    try {
+        wire.parse();
+        Block::element_const_iterator hashCount = wire.find(OPP_TLV_HASH_COUNT);
+        Block::element_const_iterator bits = wire.find(OPP_TLV_FILTER_BITS);
+        if(hashCount == wire.elements_end() || bits == wire.elements_end() || bits->value_size() == 0)
+            BOOST_THROW_EXCEPTION(Error("Incomplete OppNameSummary"));
+        // A bound on the work done for each lookup.
+        uint64_t count = readNonNegativeInteger(*hashCount);
+        if(count == 0 || count > 4 * HASH_COUNT)
+            BOOST_THROW_EXCEPTION(Error("Invalid hash count " + to_string(count)));
+        m_hashCount = static_cast<size_t>(count);
+        m_bits.assign(bits->value(), bits->value() + bits->value_size());
+    } catch (const ndn::tlv::Error& e) {
+        BOOST_THROW_EXCEPTION(Error(std::string("Malformed OppNameSummary : ") + e.what()));
+    }
+}
+
+} // namespace face
+} // namespace nfd
@@ -0,0 +1,53 @@
+#ifndef COPELABS_NFD_ANDROID_OPP_NAME_SUMMARY_HPP
+#define COPELABS_NFD_ANDROID_OPP_NAME_SUMMARY_HPP
+
+#include <stdexcept>
+#include <vector>
+
+#include "core/common.hpp"
+
+namespace nfd {
+namespace face {
+
+// The OppNameSummary is a Bloom filter of the Names of the Data held by a peer, which it sends at the start of a
+// contact so that the other peer only pushes the Data it does not hold. A Name may be reported as held when it is not,
+// with a probability of about 1%, but never the opposite.
+//
+// OppNameSummary := OPP-NAME-SUMMARY-TYPE TLV-LENGTH OppHashCount OppFilterBits
+// OppHashCount := OPP-HASH-COUNT-TYPE TLV-LENGTH nonNegativeInteger
+// OppFilterBits := OPP-FILTER-BITS-TYPE TLV-LENGTH 1*OCTET
+// The bits of the filter set for a Name are (h1 + i * h2) mod the number of bits, for i from 0 to the hash count,
+// where h1 and h2 are the low and the high 32 bits of the 64-bit FNV-1a hash of the TLV encoding of the Name, the
+// latter with its lowest bit set. Bit n is bit n mod 8 of octet n / 8.
+class OppNameSummary {
+public:
+    class Error : public std::runtime_error {
+    public:
+        explicit Error(const std::string& what)
+            : std::runtime_error(what) {
+        }
+    };
+
+    // Largest number of Names for which the probability of false positives holds; a filter for more Names would not
+    // fit in a Data.
+    static const size_t MAX_NAMES;
+
+    // Creates an empty filter sized for a number of Names, at most MAX_NAMES.
+    explicit OppNameSummary(size_t expectedNames = 0);
+
+    void insert(const Name& name);
+    bool contains(const Name& name) const;
+
+    Block wireEncode() const;
+    // Throws Error if the block is not a valid OppNameSummary.
+    void wireDecode(const Block& wire);
+
+private:
+    std::vector<uint8_t> m_bits;
+    size_t m_hashCount;
+};
+
+} // namespace face
+} // namespace nfd
+
+#endif //COPELABS_NFD_ANDROID_OPP_NAME_SUMMARY_HPP
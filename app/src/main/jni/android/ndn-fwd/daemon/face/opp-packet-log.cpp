@@ -0,0 +1,252 @@
+#include "opp-packet-log.hpp"
+
+#include "core/logger.hpp"
+
+#include <boost/filesystem.hpp>
+
+#include <algorithm>
+#include <cerrno>
+#include <cstring>
+#include <limits>
+#include <vector>
+
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+namespace nfd {
+namespace face {
+
+NFD_LOG_INIT("OppPacketLog");
+
+// Each record starts with this header, followed by the packet; records are aligned on 8 bytes. The state of a record
+// is written last, so that a record interrupted by a crash is never taken for a live one. The bytes following the
+// last record are zero, as in a new segment.
+struct RecordHeader {
+    uint32_t state;
+    uint32_t length;
+    // Milliseconds since the epoch.
+    int64_t deadline;
+};
+
+static const uint32_t RECORD_LIVE = 0x4c50504f;
+static const uint32_t RECORD_CONSUMED = 0x4350504f;
+static const int64_t NO_DEADLINE = std::numeric_limits<int64_t>::max();
+static const char SEGMENT_EXTENSION[] = ".seg";
+
+static size_t getRecordSize(size_t length) {
+    return (sizeof(RecordHeader) + length + 7) & ~static_cast<size_t>(7);
+}
+
+static uint64_t makeId(uint32_t segment, size_t offset) {
+    return (static_cast<uint64_t>(segment) << 32) | offset;
+}
+
+OppPacketLog::OppPacketLog(const std::string& directory, size_t segmentSize, size_t maxSegments)
+    : m_directory(directory), m_segmentSize(segmentSize), m_maxSegments(maxSegments) {
+    boost::system::error_code error;
+    boost::filesystem::create_directories(m_directory, error);
+    if(error)
+        BOOST_THROW_EXCEPTION(Error("Cannot create " + m_directory + " : " + error.message()));
+
+    std::vector<uint32_t> numbers;
+    for(boost::filesystem::directory_iterator it(m_directory, error), end; !error && it != end; it.increment(error)) {
+        if(it->path().extension() != SEGMENT_EXTENSION)
+            continue;
+        try {
+            numbers.push_back(std::stoul(it->path().stem().string()));
+        } catch (const std::exception&) {
+            NFD_LOG_WARN("Ignoring " << it->path());
+        }
+    }
+    if(error)
+        BOOST_THROW_EXCEPTION(Error("Cannot list " + m_directory + " : " + error.message()));
+
+    std::sort(numbers.begin(), numbers.end());
+    for(uint32_t number : numbers) {
+        try {
+            recoverSegment(number, openSegment(number, false));
+        } catch (const Error& e) {
+            NFD_LOG_WARN("Skipping segment : " << e.what());
+        }
+    }
+    if(!m_recovered.empty())
+        NFD_LOG_INFO("Recovered " << m_recovered.size() << " packets from " << m_directory);
+}
+
+OppPacketLog::~OppPacketLog() {
+    for(auto& entry : m_segments)
+        ::munmap(entry.second.map, entry.second.size);
+}
+
+std::deque<OppPacketLog::Record> OppPacketLog::takeRecovered() {
+    std::deque<Record> recovered;
+    recovered.swap(m_recovered);
+    return recovered;
+}
+
+OppPacketLog::Record OppPacketLog::append(const Block& packet, const time::system_clock::TimePoint& deadline) {
+    Record record = {0, packet.size(), deadline};
+    size_t recordSize = getRecordSize(packet.size());
+
+    if(m_segments.empty() || m_segments.rbegin()->second.used + recordSize > m_segments.rbegin()->second.size) {
+        if(m_segments.size() >= m_maxSegments)
+            return record;
+        uint32_t number = m_segments.empty() ? 1 : m_segments.rbegin()->first + 1;
+        try {
+            openSegment(number, true);
+        } catch (const Error& e) {
+            NFD_LOG_WARN(e.what());
+            return record;
+        }
+    }
+
+    uint32_t number = m_segments.rbegin()->first;
+    Segment& segment = m_segments.rbegin()->second;
+    if(segment.used + recordSize > segment.size)
+        return record;
+
+    RecordHeader* header = reinterpret_cast<RecordHeader*>(segment.map + segment.used);
+    std::memcpy(segment.map + segment.used + sizeof(RecordHeader), packet.wire(), packet.size());
+    header->length = packet.size();
+    header->deadline = (deadline == time::system_clock::TimePoint::max()) ? NO_DEADLINE
+                                                                          : time::toUnixTimestamp(deadline).count();
+    header->state = RECORD_LIVE;
+
+    record.id = makeId(number, segment.used);
+    segment.used += recordSize;
+    segment.live++;
+    m_liveCount++;
+    return record;
+}
+
+Block OppPacketLog::read(uint64_t id) const {
+    const Segment& segment = m_segments.at(static_cast<uint32_t>(id >> 32));
+    const uint8_t* record = segment.map + static_cast<uint32_t>(id);
+    const RecordHeader* header = reinterpret_cast<const RecordHeader*>(record);
+    return Block(record + sizeof(RecordHeader), header->length);
+}
+
+// The last segment is kept and written again from its start once all of its records are consumed, rather than being
+// deleted and created again whenever the queue drains.
+void OppPacketLog::consume(uint64_t id) {
+    uint32_t number = static_cast<uint32_t>(id >> 32);
+    auto it = m_segments.find(number);
+    if(it == m_segments.end())
+        return;
+    Segment& segment = it->second;
+    RecordHeader* header = reinterpret_cast<RecordHeader*>(segment.map + static_cast<uint32_t>(id));
+    if(header->state != RECORD_LIVE)
+        return;
+
+    header->state = RECORD_CONSUMED;
+    segment.live--;
+    m_liveCount--;
+    if(segment.live > 0)
+        return;
+    if(number != m_segments.rbegin()->first)
+        removeSegment(number);
+    else {
+        std::memset(segment.map, 0, segment.used);
+        segment.used = 0;
+    }
+}
+
+size_t OppPacketLog::getLiveCount() const {
+    return m_liveCount;
+}
+
+// Sets the size of a file and makes sure the storage for all of it is allocated. posix_fallocate is only available
+// from android-21 on, and a sparse file produced by ftruncate alone is not backed by any storage; the file is filled
+// with zeros instead, which a new segment is expected to hold anyway.
+static bool allocateFile(int fd, size_t size) {
+    if(::ftruncate(fd, static_cast<off_t>(size)) != 0)
+        return false;
+    std::vector<uint8_t> zeros(std::min<size_t>(size, 65536), 0);
+    size_t offset = 0;
+    while(offset < size) {
+        ssize_t written = ::pwrite(fd, zeros.data(), std::min(zeros.size(), size - offset), static_cast<off_t>(offset));
+        if(written < 0 && errno == EINTR)
+            continue;
+        if(written <= 0)
+            return false;
+        offset += static_cast<size_t>(written);
+    }
+    return true;
+}
+
+// Space for the segment is allocated upfront: writing to a mapping whose file cannot grow would raise SIGBUS.
+OppPacketLog::Segment& OppPacketLog::openSegment(uint32_t number, bool isNew) {
+    std::string path = getPath(number);
+    int fd = ::open(path.c_str(), O_RDWR | O_CREAT, 0600);
+    if(fd < 0)
+        BOOST_THROW_EXCEPTION(Error("Cannot open " + path + " : " + std::strerror(errno)));
+
+    // A segment written with another segment size is recovered with its own size.
+    struct stat status;
+    size_t size = m_segmentSize;
+    if(!isNew && ::fstat(fd, &status) == 0 && status.st_size > 0)
+        size = static_cast<size_t>(status.st_size);
+    else if(!allocateFile(fd, size)) {
+        int allocateError = errno;
+        ::close(fd);
+        ::unlink(path.c_str());
+        BOOST_THROW_EXCEPTION(Error("Cannot allocate " + to_string(size) + " bytes for " + path + " : "
+                                    + std::strerror(allocateError)));
+    }
+
+    void* map = ::mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    int mapError = errno;
+    // The mapping remains valid once the file is closed.
+    ::close(fd);
+    if(map == MAP_FAILED) {
+        if(isNew)
+            ::unlink(path.c_str());
+        BOOST_THROW_EXCEPTION(Error("Cannot map " + path + " : " + std::strerror(mapError)));
+    }
+
+    Segment& segment = m_segments[number];
+    segment.map = static_cast<uint8_t*>(map);
+    segment.size = size;
+    return segment;
+}
+
+void OppPacketLog::recoverSegment(uint32_t number, Segment& segment) {
+    size_t offset = 0;
+    while(offset + sizeof(RecordHeader) <= segment.size) {
+        const RecordHeader* header = reinterpret_cast<const RecordHeader*>(segment.map + offset);
+        if((header->state != RECORD_LIVE && header->state != RECORD_CONSUMED)
+           || header->length > segment.size - offset - sizeof(RecordHeader))
+            break;
+        if(header->state == RECORD_LIVE) {
+            time::system_clock::TimePoint deadline = (header->deadline == NO_DEADLINE)
+                ? time::system_clock::TimePoint::max()
+                : time::fromUnixTimestamp(time::milliseconds(header->deadline));
+            m_recovered.push_back(Record{makeId(number, offset), header->length, deadline});
+            segment.live++;
+            m_liveCount++;
+        }
+        offset += getRecordSize(header->length);
+    }
+    segment.used = offset;
+
+    if(segment.live == 0)
+        removeSegment(number);
+}
+
+void OppPacketLog::removeSegment(uint32_t number) {
+    auto it = m_segments.find(number);
+    if(it != m_segments.end()) {
+        ::munmap(it->second.map, it->second.size);
+        m_segments.erase(it);
+    }
+    ::unlink(getPath(number).c_str());
+}
+
+std::string OppPacketLog::getPath(uint32_t number) const {
+    return m_directory + "/" + to_string(number) + SEGMENT_EXTENSION;
+}
+
+} // namespace face
+} // namespace nfd
@@ -0,0 +1,76 @@
+#ifndef COPELABS_NFD_ANDROID_OPP_PACKET_LOG_HPP
+#define COPELABS_NFD_ANDROID_OPP_PACKET_LOG_HPP
+
+#include <deque>
+#include <map>
+#include <stdexcept>
+#include <string>
+
+#include "core/common.hpp"
+
+namespace nfd {
+namespace face {
+
+// The OppPacketLog persists the packets queued by an OppTransport in a directory of its own, so that they survive a
+// restart of the daemon and do not have to be kept in memory. The directory holds segments of fixed size, mapped into
+// memory, to which records are appended. A record is marked consumed in place once its packet left the queue, or once
+// the peer acknowledged it when reliability is enabled; a segment is deleted once all of its records are consumed.
+// Only the position of the live records is kept in memory.
+class OppPacketLog : noncopyable {
+public:
+    class Error : public std::runtime_error {
+    public:
+        explicit Error(const std::string& what)
+            : std::runtime_error(what) {
+        }
+    };
+
+    // A live record, identified by its segment and its offset in the segment; an id of 0 is never valid.
+    struct Record {
+        uint64_t id;
+        size_t size;
+        time::system_clock::TimePoint deadline;
+    };
+
+    // Opens the log kept in a directory, which is created if needed, and recovers its live records. At most
+    // maxSegments segments of segmentSize bytes are used. Throws Error if the directory cannot be used.
+    OppPacketLog(const std::string& directory, size_t segmentSize, size_t maxSegments);
+    ~OppPacketLog();
+
+    // Removes and returns the live records found when the log was opened, in the order they were appended.
+    std::deque<Record> takeRecovered();
+    // Appends a packet. The id of the returned record is 0 if the log is full.
+    Record append(const Block& packet, const time::system_clock::TimePoint& deadline);
+    // Reads the packet of a live record. Throws ndn::tlv::Error if the record does not hold a valid packet.
+    Block read(uint64_t id) const;
+    // Marks a record consumed.
+    void consume(uint64_t id);
+    size_t getLiveCount() const;
+
+private:
+    struct Segment {
+        uint8_t* map = nullptr;
+        size_t size = 0;
+        // Bytes taken by the records appended so far.
+        size_t used = 0;
+        size_t live = 0;
+    };
+
+    Segment& openSegment(uint32_t number, bool isNew);
+    void recoverSegment(uint32_t number, Segment& segment);
+    void removeSegment(uint32_t number);
+    std::string getPath(uint32_t number) const;
+
+private:
+    std::string m_directory;
+    size_t m_segmentSize;
+    size_t m_maxSegments;
+    std::map<uint32_t, Segment> m_segments;
+    std::deque<Record> m_recovered;
+    size_t m_liveCount = 0;
+};
+
+} // namespace face
+} // namespace nfd
+
+#endif //COPELABS_NFD_ANDROID_OPP_PACKET_LOG_HPP
@@ -0,0 +1,267 @@
+#include "opp-push-engine.hpp"
+#include "opp-transport.hpp"
+
+#include "core/logger.hpp"
+
+#include <algorithm>
+
+namespace nfd {
+namespace face {
+
+NFD_LOG_INIT("OppPushEngine");
+
+// Limited to the peers in range, and not worth caching by them.
+static const Name SUMMARY_PREFIX("/localhop/opp/summary");
+
+static bool isGroupFace(const Face& face) {
+    return face.getRemoteUri().getScheme() == "oppmc";
+}
+
+OppPushEngine::OppPushEngine(Cs& cs, FaceTable& faceTable, ndn::KeyChain& keyChain, const Options& options)
+    : m_cs(cs), m_faceTable(faceTable), m_keyChain(keyChain), m_options(options) {
+    m_afterAddConnection = m_faceTable.afterAdd.connect([this] (Face& face) { onFaceAdded(face); });
+    m_beforeRemoveConnection = m_faceTable.beforeRemove.connect([this] (Face& face) {
+        m_contacts.erase(face.getId());
+    });
+}
+
+bool OppPushEngine::push(FaceId faceId, const Name& prefix) {
+    auto contact = m_contacts.find(faceId);
+    Face* face = m_faceTable.get(faceId);
+    if(contact == m_contacts.end() || face == nullptr || face->getState() != TransportState::UP) {
+        NFD_LOG_WARN("Cannot push " << prefix << " to face #" << faceId);
+        return false;
+    }
+
+    std::vector<Name>& prefixes = contact->second.prefixes;
+    if(std::find(prefixes.begin(), prefixes.end(), prefix) == prefixes.end())
+        prefixes.push_back(prefix);
+    NFD_LOG_INFO("Pushing " << prefix << " to face #" << faceId);
+    scheduleBatch(faceId, time::milliseconds::zero());
+    return true;
+}
+
+// Both the Faces of single peers and the group Face are pushed to. Packets under the prefixes of the group are not
+// sent on the former while the latter is UP, which then pushes them to all the peers at once.
+void OppPushEngine::onFaceAdded(Face& face) {
+    if(dynamic_cast<OppTransport*>(face.getTransport()) == nullptr)
+        return;
+
+    FaceId faceId = face.getId();
+    Contact& contact = m_contacts[faceId];
+    contact.stateConnection = face.afterStateChange.connect([this, faceId] (TransportState, TransportState newState) {
+        onStateChanged(faceId, newState);
+    });
+    contact.dataConnection = face.afterReceiveData.connect([this, faceId] (const Data& data) {
+        onDataReceived(faceId, data);
+    });
+    if(face.getState() == TransportState::UP)
+        onStateChanged(faceId, TransportState::UP);
+}
+
+// Each contact starts with the automatic pushes; what was pushed during the previous one may not have reached the peer.
+// What is known of the peer is only forgotten when the contact ends, since its summary may be received before the Face
+// comes UP.
+void OppPushEngine::onStateChanged(FaceId faceId, TransportState newState) {
+    auto contact = m_contacts.find(faceId);
+    Face* face = m_faceTable.get(faceId);
+    if(contact == m_contacts.end() || face == nullptr)
+        return;
+
+    contact->second.batchEvent.cancel();
+    contact->second.isBatchScheduled = false;
+    contact->second.summaryEvent.cancel();
+    contact->second.isWaitingSummary = false;
+    if(newState != TransportState::UP) {
+        contact->second.prefixes.clear();
+        contact->second.snapshot.clear();
+        contact->second.snapshotPosition = 0;
+        contact->second.delivered.clear();
+        contact->second.hasPeerSummary = false;
+        return;
+    }
+
+    // The prefixes pushed explicitly in the meantime are kept.
+    std::vector<Name>& prefixes = contact->second.prefixes;
+    for(const Name& prefix : m_options.prefixes)
+        if(std::find(prefixes.begin(), prefixes.end(), prefix) == prefixes.end())
+            prefixes.push_back(prefix);
+    if(m_options.summary && !isGroupFace(*face)) {
+        sendSummary(*face);
+        if(!contact->second.hasPeerSummary) {
+            contact->second.isWaitingSummary = true;
+            contact->second.summaryEvent = scheduler::schedule(m_options.summaryWait, [this, faceId] {
+                NFD_LOG_DEBUG("No summary received on face #" << faceId);
+                stopWaitingSummary(faceId);
+            });
+            return;
+        }
+    }
+    if(!contact->second.prefixes.empty())
+        scheduleBatch(faceId, time::milliseconds::zero());
+}
+
+// The Forwarder drops the Data no Interest asked for, as it does on any other Face. The Data pushed by the peer under
+// the prefixes pushed automatically are admitted to the Content Store here instead, so that they are cached without
+// opening the Content Store to every unsolicited Data.
+void OppPushEngine::onDataReceived(FaceId faceId, const Data& data) {
+    if(SUMMARY_PREFIX.isPrefixOf(data.getName())) {
+        onSummaryReceived(faceId, data);
+        return;
+    }
+    auto contact = m_contacts.find(faceId);
+    if(contact == m_contacts.end())
+        return;
+
+    contact->second.delivered.insert(data.getName());
+    for(const Name& prefix : m_options.prefixes) {
+        if(prefix.isPrefixOf(data.getName())) {
+            m_cs.insert(data, true);
+            break;
+        }
+    }
+}
+
+// The summary covers the Names under the prefixes pushed automatically, which are those the peer may push in return.
+// It is built from the Content Store at each contact, since the latter changes between two contacts.
+void OppPushEngine::sendSummary(Face& face) {
+    std::vector<Name> names;
+    for(const auto& entry : m_cs) {
+        for(const Name& prefix : m_options.prefixes) {
+            if(prefix.isPrefixOf(entry.getName())) {
+                names.push_back(entry.getName());
+                break;
+            }
+        }
+    }
+    // A saturated filter would report most Names as held by this peer, which would then never receive them. Without a
+    // summary, the peer pushes everything once it stops waiting for one.
+    if(names.size() > OppNameSummary::MAX_NAMES) {
+        NFD_LOG_DEBUG("Too many Names to summarise for face #" << face.getId() << ". Sending no summary.");
+        return;
+    }
+    OppNameSummary summary(names.size());
+    for(const Name& name : names)
+        summary.insert(name);
+
+    // Stale at once, so that a peer caching it evicts it first.
+    shared_ptr<Data> data = make_shared<Data>(Name(SUMMARY_PREFIX).appendTimestamp());
+    data->setContent(summary.wireEncode());
+    data->setFreshnessPeriod(time::milliseconds::zero());
+    m_keyChain.sign(*data, ndn::security::signingWithSha256());
+    NFD_LOG_DEBUG("Sending summary of " << names.size() << " Names to face #" << face.getId());
+    face.sendData(*data);
+}
+
+void OppPushEngine::onSummaryReceived(FaceId faceId, const Data& data) {
+    auto contact = m_contacts.find(faceId);
+    Face* face = m_faceTable.get(faceId);
+    if(contact == m_contacts.end() || face == nullptr || isGroupFace(*face))
+        return;
+    try {
+        contact->second.peerSummary.wireDecode(data.getContent().blockFromValue());
+        contact->second.hasPeerSummary = true;
+        NFD_LOG_DEBUG("Received summary on face #" << faceId);
+    } catch (const std::exception& e) {
+        NFD_LOG_WARN("Invalid summary received on face #" << faceId << " : " << e.what());
+    }
+    stopWaitingSummary(faceId);
+}
+
+void OppPushEngine::stopWaitingSummary(FaceId faceId) {
+    auto contact = m_contacts.find(faceId);
+    if(contact == m_contacts.end() || !contact->second.isWaitingSummary)
+        return;
+    contact->second.isWaitingSummary = false;
+    contact->second.summaryEvent.cancel();
+    if(!contact->second.prefixes.empty())
+        scheduleBatch(faceId, time::milliseconds::zero());
+}
+
+void OppPushEngine::scheduleBatch(FaceId faceId, time::milliseconds delay) {
+    Contact& contact = m_contacts[faceId];
+    if(contact.isBatchScheduled)
+        return;
+    contact.isBatchScheduled = true;
+    contact.batchEvent = scheduler::schedule(delay, [this, faceId] {
+        auto contact = m_contacts.find(faceId);
+        if(contact == m_contacts.end())
+            return;
+        contact->second.isBatchScheduled = false;
+        sendBatch(faceId);
+    });
+}
+
+// The prefixes are pushed one after the other. The Data under the first prefix are taken from the Content Store at
+// once, and each batch resumes where the previous one stopped. Once they are all pushed, the Content Store is walked
+// again so that the Data it admitted in the meantime are pushed as well; the entries already pushed are skipped.
+void OppPushEngine::sendBatch(FaceId faceId) {
+    auto contact = m_contacts.find(faceId);
+    Face* face = m_faceTable.get(faceId);
+    if(contact == m_contacts.end() || face == nullptr || face->getState() != TransportState::UP
+       || contact->second.isWaitingSummary)
+        return;
+
+    OppTransport* transport = static_cast<OppTransport*>(face->getTransport());
+    size_t limit = getQueueLimit(*face);
+    std::vector<Name>& prefixes = contact->second.prefixes;
+    std::vector<shared_ptr<const Data>>& snapshot = contact->second.snapshot;
+    size_t& position = contact->second.snapshotPosition;
+    std::set<Name>& delivered = contact->second.delivered;
+    size_t sent = 0;
+    while(!prefixes.empty()) {
+        if(position == snapshot.size()) {
+            takeSnapshot(faceId);
+            if(snapshot.empty()) {
+                NFD_LOG_INFO("Pushed " << prefixes.front() << " to face #" << faceId);
+                prefixes.erase(prefixes.begin());
+                continue;
+            }
+        }
+        // The peer may have sent the Data since the snapshot was taken.
+        shared_ptr<const Data> data = snapshot[position];
+        if(delivered.count(data->getName()) > 0) {
+            position++;
+            continue;
+        }
+        // A Data larger than the limit is still pushed once the queue is empty.
+        size_t queued = transport->getQueuedBytes();
+        if(sent == m_options.batchPackets || (queued > 0 && queued + data->wireEncode().size() > limit))
+            break;
+        face->sendData(*data);
+        delivered.insert(data->getName());
+        position++;
+        sent++;
+    }
+
+    NFD_LOG_DEBUG("Pushed " << sent << " Data to face #" << faceId);
+    if(!prefixes.empty())
+        scheduleBatch(faceId, m_options.batchInterval);
+}
+
+// Takes the Data under the first prefix which are neither pushed nor held by the peer. The snapshot keeps them until
+// they are pushed, even if the Content Store evicts them in the meantime.
+void OppPushEngine::takeSnapshot(FaceId faceId) {
+    Contact& contact = m_contacts[faceId];
+    const Name& prefix = contact.prefixes.front();
+    const OppNameSummary* peerSummary = contact.hasPeerSummary ? &contact.peerSummary : nullptr;
+    contact.snapshot.clear();
+    contact.snapshotPosition = 0;
+    for(const auto& entry : m_cs) {
+        if(!prefix.isPrefixOf(entry.getName()) || contact.delivered.count(entry.getName()) > 0
+           || (peerSummary != nullptr && peerSummary->contains(entry.getName())))
+            continue;
+        contact.snapshot.push_back(entry.getData().shared_from_this());
+    }
+}
+
+// Pushed Data leave room in the queue for the packets forwarded to the peer, so that the budget of the Face never
+// drops the latter for the former.
+size_t OppPushEngine::getQueueLimit(const Face& face) const {
+    const OppTransport* transport = static_cast<const OppTransport*>(face.getTransport());
+    size_t budget = transport->getQueueBudget();
+    return budget == 0 ? m_options.queueBytes : std::min(m_options.queueBytes, budget / 2);
+}
+
+} // namespace face
+} // namespace nfd
@@ -0,0 +1,95 @@
+#ifndef COPELABS_NFD_ANDROID_OPP_PUSH_ENGINE_HPP
+#define COPELABS_NFD_ANDROID_OPP_PUSH_ENGINE_HPP
+
+#include <map>
+#include <set>
+#include <vector>
+
+#include "opp-name-summary.hpp"
+
+#include "daemon/face/face.hpp"
+#include "daemon/fw/face-table.hpp"
+#include "daemon/table/cs.hpp"
+
+#include "core/scheduler.hpp"
+
+#include <ndn-cxx/security/key-chain.hpp>
+
+namespace nfd {
+namespace face {
+
+// The OppPushEngine pushes the Data held by the Content Store to the peers reached through opp:// Faces, without
+// waiting for their Interests. A push streams the Data under a prefix to a Face in batches, while the queue of the
+// Face has room for them; the Data pushed to the peer or received from it during the current contact are skipped.
+// The Data under some prefixes are pushed to every peer as soon as its Face comes UP, and the Data received under them
+// are admitted to the Content Store although no Interest asked for them.
+//
+// When summaries are enabled, each peer starts a contact by sending an OppNameSummary of the Names it holds under the
+// prefixes pushed automatically, as a Data under /localhop/opp/summary. The automatic pushes wait for the summary of
+// the peer, or for a delay if it sends none, and skip the Data it holds; each peer thus sends the other the Data it
+// lacks. The group Face neither sends nor waits for summaries.
+class OppPushEngine : noncopyable {
+public:
+    struct Options {
+        // Prefixes pushed to every peer at the start of each contact.
+        std::vector<Name> prefixes;
+        // Maximum number of Data pushed at once, and delay between two batches.
+        size_t batchPackets = 16;
+        time::milliseconds batchInterval = time::milliseconds(100);
+        // Pushing pauses while the queue of the Face holds this many bytes, or half of its budget if less.
+        size_t queueBytes = 262144;
+        // Whether summaries are exchanged at the start of each contact, and how long the pushes wait for the summary
+        // of the peer.
+        bool summary = false;
+        time::milliseconds summaryWait = time::milliseconds(1000);
+    };
+
+    OppPushEngine(Cs& cs, FaceTable& faceTable, ndn::KeyChain& keyChain, const Options& options = Options());
+
+    // Pushes the Data under a prefix to an opp:// Face which is UP. Returns false if the Face cannot be pushed to.
+    bool push(FaceId faceId, const Name& prefix);
+
+private:
+    void onFaceAdded(Face& face);
+    void onStateChanged(FaceId faceId, TransportState newState);
+    void onDataReceived(FaceId faceId, const Data& data);
+    void sendSummary(Face& face);
+    void onSummaryReceived(FaceId faceId, const Data& data);
+    void stopWaitingSummary(FaceId faceId);
+    void scheduleBatch(FaceId faceId, time::milliseconds delay);
+    void sendBatch(FaceId faceId);
+    void takeSnapshot(FaceId faceId);
+    size_t getQueueLimit(const Face& face) const;
+
+private:
+    // Pushes in progress to a peer, and the Data the peer is known to hold since the start of the contact.
+    struct Contact {
+        std::vector<Name> prefixes;
+        std::set<Name> delivered;
+        // Data under the first prefix still to push, and how many of them were pushed by the previous batches.
+        std::vector<shared_ptr<const Data>> snapshot;
+        size_t snapshotPosition = 0;
+        scheduler::ScopedEventId batchEvent;
+        bool isBatchScheduled = false;
+        // Whether the pushes wait for the summary of the peer, and whether it was received during the contact.
+        bool isWaitingSummary = false;
+        bool hasPeerSummary = false;
+        OppNameSummary peerSummary;
+        scheduler::ScopedEventId summaryEvent;
+        signal::ScopedConnection stateConnection;
+        signal::ScopedConnection dataConnection;
+    };
+
+    Cs& m_cs;
+    FaceTable& m_faceTable;
+    ndn::KeyChain& m_keyChain;
+    Options m_options;
+    std::map<FaceId, Contact> m_contacts;
+    signal::ScopedConnection m_afterAddConnection;
+    signal::ScopedConnection m_beforeRemoveConnection;
+};
+
+} // namespace face
+} // namespace nfd
+
+#endif //COPELABS_NFD_ANDROID_OPP_PUSH_ENGINE_HPP
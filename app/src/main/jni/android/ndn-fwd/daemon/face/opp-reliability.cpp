@@ -0,0 +1,167 @@
+#include "opp-reliability.hpp"
+
+#include "core/logger.hpp"
+
+#include "ndn-cxx/encoding/block-helpers.hpp"
+#include "ndn-cxx/lp/tlv.hpp"
+#include "ndn-cxx/util/random.hpp"
+
+namespace nfd {
+namespace face {
+
+NFD_LOG_INIT("OppReliability");
+
+// TxSequence is not known to this version of ndn-cxx; its TLV-TYPE is ignorable by peers which do not understand it.
+static const uint32_t TX_SEQUENCE = 840;
+
+// Bounds on the state kept for a peer which never acknowledges anything or retransmits forever.
+static const size_t MAX_UNACKNOWLEDGED = 4096;
+static const size_t MAX_EARLY_ACKS = 1024;
+static const size_t MAX_RECEIVED = 4096;
+
+const size_t OppReliability::MAX_ACKS_PER_PACKET = 16;
+// LpPacket and Fragment headers (4 octets each at most), then the TxSequence and the Acks (12 octets each at most).
+const size_t OppReliability::HEADROOM = 8 + 12 * (1 + MAX_ACKS_PER_PACKET);
+
+// The epoch fills the high 32 bits; the low ones count the packets sent since the start. It is never 0, which stands
+// for no TxSequence.
+OppReliability::OppReliability()
+    : m_nextTxSequence((static_cast<uint64_t>(ndn::random::generateWord32() | 1) << 32) + 1) {
+}
+
+Block OppReliability::wrap(const Block& packet, uint64_t& txSequence) {
+    bool isAck = isAckPacket(packet);
+    if(!isAck && txSequence == 0)
+        txSequence = m_nextTxSequence++;
+
+    // The header fields of an LpPacket are ordered by TLV-TYPE and followed by the Fragment.
+    Block wrapped(ndn::lp::tlv::LpPacket);
+    std::vector<Block> following;
+    if(packet.type() == ndn::lp::tlv::LpPacket) {
+        packet.parse();
+        for(const Block& field : packet.elements()) {
+            if(field.type() != ndn::lp::tlv::Fragment && field.type() < ndn::lp::tlv::Ack)
+                wrapped.push_back(field);
+            else
+                following.push_back(field);
+        }
+    } else
+        following.push_back(ndn::encoding::makeBinaryBlock(ndn::lp::tlv::Fragment, packet.wire(), packet.size()));
+
+    for(size_t i = 0; i < MAX_ACKS_PER_PACKET && !m_pendingAcks.empty(); i++) {
+        wrapped.push_back(ndn::encoding::makeNonNegativeIntegerBlock(ndn::lp::tlv::Ack, m_pendingAcks.front()));
+        m_pendingAcks.pop_front();
+    }
+    if(!isAck)
+        wrapped.push_back(ndn::encoding::makeNonNegativeIntegerBlock(TX_SEQUENCE, txSequence));
+    for(const Block& field : following)
+        wrapped.push_back(field);
+
+    wrapped.encode();
+    return wrapped;
+}
+
+Block OppReliability::makeAckPacket() {
+    Block ack(ndn::lp::tlv::LpPacket);
+    ack.encode();
+    return ack;
+}
+
+bool OppReliability::isAckPacket(const Block& packet) {
+    return packet.type() == ndn::lp::tlv::LpPacket && packet.value_size() == 0;
+}
+
+// A packet which is not kept, because the peer acknowledged it already or because too many packets are waiting for
+// an Ack, is released at once.
+void OppReliability::onWritten(uint64_t txSequence, Transport::Packet&& packet,
+                               const time::steady_clock::TimePoint& deadline, size_t trafficClass, uint64_t logRecord) {
+    // The peer may acknowledge a packet before the completion of its write is notified.
+    if(txSequence == 0 || m_earlyAcks.erase(txSequence) > 0) {
+        m_releasedRecords.push_back(logRecord);
+        return;
+    }
+
+    m_unacknowledged.emplace(txSequence, UnacknowledgedPacket{std::move(packet), deadline, trafficClass, logRecord});
+    if(m_unacknowledged.size() > MAX_UNACKNOWLEDGED) {
+        NFD_LOG_WARN("Peer does not acknowledge; forgetting TxSequence " << m_unacknowledged.begin()->first);
+        m_releasedRecords.push_back(m_unacknowledged.begin()->second.logRecord);
+        m_unacknowledged.erase(m_unacknowledged.begin());
+    }
+}
+
+std::map<uint64_t, OppReliability::UnacknowledgedPacket> OppReliability::takeUnacknowledged() {
+    std::map<uint64_t, UnacknowledgedPacket> unacknowledged;
+    unacknowledged.swap(m_unacknowledged);
+    return unacknowledged;
+}
+
+size_t OppReliability::getUnacknowledgedCount() const {
+    return m_unacknowledged.size();
+}
+
+std::vector<uint64_t> OppReliability::takeReleasedRecords() {
+    std::vector<uint64_t> released;
+    released.swap(m_releasedRecords);
+    return released;
+}
+
+bool OppReliability::processReceived(Block& packet) {
+    if(packet.type() != ndn::lp::tlv::LpPacket)
+        return true;
+
+    uint64_t txSequence = 0;
+    bool hasFragment = false;
+    Block stripped(ndn::lp::tlv::LpPacket);
+    try {
+        packet.parse();
+        for(const Block& field : packet.elements()) {
+            if(field.type() == ndn::lp::tlv::Ack) {
+                uint64_t acked = readNonNegativeInteger(field);
+                auto unacknowledged = m_unacknowledged.find(acked);
+                if(unacknowledged != m_unacknowledged.end()) {
+                    m_releasedRecords.push_back(unacknowledged->second.logRecord);
+                    m_unacknowledged.erase(unacknowledged);
+                } else {
+                    m_earlyAcks.insert(acked);
+                    if(m_earlyAcks.size() > MAX_EARLY_ACKS)
+                        m_earlyAcks.erase(m_earlyAcks.begin());
+                }
+            } else if(field.type() == TX_SEQUENCE)
+                txSequence = readNonNegativeInteger(field);
+            else {
+                hasFragment = hasFragment || field.type() == ndn::lp::tlv::Fragment;
+                stripped.push_back(field);
+            }
+        }
+    } catch (const ndn::tlv::Error& e) {
+        NFD_LOG_WARN("Failed to decode the link fields of an incoming packet : " << e.what());
+        return true;
+    }
+
+    if(txSequence != 0) {
+        // Acknowledge it even if it is a duplicate; the previous Ack may have been lost.
+        m_pendingAcks.push_back(txSequence);
+        if(!m_received.insert(txSequence).second) {
+            NFD_LOG_DEBUG("Discarding duplicate TxSequence " << txSequence);
+            return false;
+        }
+        m_receivedOrder.push_back(txSequence);
+        if(m_receivedOrder.size() > MAX_RECEIVED) {
+            m_received.erase(m_receivedOrder.front());
+            m_receivedOrder.pop_front();
+        }
+    }
+
+    if(!hasFragment)
+        return false;
+    stripped.encode();
+    packet = stripped;
+    return true;
+}
+
+bool OppReliability::hasPendingAcks() const {
+    return !m_pendingAcks.empty();
+}
+
+} // namespace face
+} // namespace nfd
@@ -0,0 +1,79 @@
+#ifndef COPELABS_NFD_ANDROID_OPP_RELIABILITY_HPP
+#define COPELABS_NFD_ANDROID_OPP_RELIABILITY_HPP
+
+#include <deque>
+#include <map>
+#include <set>
+#include <vector>
+
+#include "daemon/face/transport.hpp"
+
+namespace nfd {
+namespace face {
+
+// The OppReliability keeps track of which packets the peer of an OppTransport holds, so that a contact only carries
+// the packets it has not received yet. Following NDNLPv2, every packet sent to the peer is wrapped into an LpPacket
+// carrying a TxSequence, and the TxSequences of the packets received from the peer are acknowledged by Ack fields
+// piggybacked on the packets sent to it. Unlike NDNLPv2, a packet keeps its TxSequence when it is retransmitted so
+// that the peer recognises the packets it already received during a previous contact. The TxSequences start from a
+// random epoch, so that those assigned after a restart do not collide with the ones the peer received before.
+class OppReliability {
+public:
+    OppReliability();
+
+    // Maximum number of Acks piggybacked on a single packet.
+    static const size_t MAX_ACKS_PER_PACKET;
+    // Maximum number of bytes added to a packet by wrap(); the OppTransport advertises an MTU reduced accordingly.
+    static const size_t HEADROOM;
+
+    // Wraps a packet handed by the link service into an LpPacket carrying its TxSequence and the pending Acks.
+    // A TxSequence is assigned to the packet upon its first transmission.
+    Block wrap(const Block& packet, uint64_t& txSequence);
+    // Creates a packet which only carries the pending Acks; it is wrapped like the others when sent.
+    static Block makeAckPacket();
+    static bool isAckPacket(const Block& packet);
+
+    // A packet written to the peer, along with the time after which it is useless to send it again, the traffic
+    // class it was queued in and its record in the OppPacketLog, if any.
+    struct UnacknowledgedPacket {
+        Transport::Packet packet;
+        time::steady_clock::TimePoint deadline;
+        size_t trafficClass;
+        uint64_t logRecord;
+    };
+
+    // Keeps a packet written to the peer until the peer acknowledges it.
+    void onWritten(uint64_t txSequence, Transport::Packet&& packet, const time::steady_clock::TimePoint& deadline,
+                   size_t trafficClass, uint64_t logRecord);
+    // Removes the packets not acknowledged by the peer so that they are sent again, in their original order.
+    std::map<uint64_t, UnacknowledgedPacket> takeUnacknowledged();
+    size_t getUnacknowledgedCount() const;
+    // Removes the records in the OppPacketLog of the packets acknowledged by the peer, or forgotten, since the last
+    // call; their packets are no longer needed.
+    std::vector<uint64_t> takeReleasedRecords();
+
+    // Processes the Acks and the TxSequence of a received packet and strips them. Returns false if the packet carries
+    // nothing to pass on to the link service; either it only carried Acks or it was received before.
+    bool processReceived(Block& packet);
+    bool hasPendingAcks() const;
+
+private:
+    // Packets written to the peer and not acknowledged yet, by TxSequence.
+    std::map<uint64_t, UnacknowledgedPacket> m_unacknowledged;
+    // Acks received before the completion of the corresponding write.
+    std::set<uint64_t> m_earlyAcks;
+    std::vector<uint64_t> m_releasedRecords;
+    uint64_t m_nextTxSequence;
+
+    // TxSequences received from the peer, to be acknowledged.
+    std::deque<uint64_t> m_pendingAcks;
+    // Most recent TxSequences received from the peer, used to discard duplicates, and the order they were received in.
+    // Those of another epoch may be lower; the oldest are forgotten first, not the lowest.
+    std::set<uint64_t> m_received;
+    std::deque<uint64_t> m_receivedOrder;
+};
+
+} // namespace face
+} // namespace nfd
+
+#endif //COPELABS_NFD_ANDROID_OPP_RELIABILITY_HPP
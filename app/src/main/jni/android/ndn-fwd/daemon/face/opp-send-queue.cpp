@@ -0,0 +1,437 @@
+#include "opp-send-queue.hpp"
+#include "opp-name-codec.hpp"
+
+#include "core/logger.hpp"
+
+#include "ndn-cxx/encoding/block-helpers.hpp"
+#include "ndn-cxx/encoding/tlv.hpp"
+#include "ndn-cxx/lp/packet.hpp"
+
+#include <algorithm>
+#include <cstring>
+#include <limits>
+
+namespace nfd {
+namespace face {
+
+NFD_LOG_INIT("OppSendQueue");
+
+// Bytes credited to a class of weight 1 at each round; about one frame of the underlying Wi-Fi link.
+static const size_t QUANTUM = 1500;
+static const size_t NONE = std::numeric_limits<size_t>::max();
+// Tombstones are purged from the whole queue once they outnumber the packets, so that the memory they hold stays
+// proportional to the queue.
+static const size_t MIN_TOMBSTONES_PURGED = 64;
+
+// Whether a packet handed by the link service is one fragment among several of a larger packet, and which one.
+static bool isFragment(const Block& packet, uint64_t* index = nullptr) {
+    if(packet.type() != ndn::lp::tlv::LpPacket)
+        return false;
+    try {
+        ndn::lp::Packet lpPacket(packet);
+        if(!lpPacket.has<ndn::lp::FragCountField>() || lpPacket.get<ndn::lp::FragCountField>() <= 1)
+            return false;
+        if(index != nullptr)
+            *index = lpPacket.has<ndn::lp::FragIndexField>() ? lpPacket.get<ndn::lp::FragIndexField>() : 0;
+        return true;
+    } catch (const ndn::tlv::Error&) {
+        return false;
+    }
+}
+
+// FNV-1a hash, continued from a previous key. 64 bits make collisions negligible, so that the hashed bytes do not have
+// to be kept.
+static uint64_t hashBytes(uint64_t key, const uint8_t* bytes, size_t length) {
+    for(size_t i = 0; i < length; i++) {
+        key ^= bytes[i];
+        key *= 1099511628211ULL;
+    }
+    return key;
+}
+
+// Hash of the TLV-VALUE of a Name, mixed with the type of the packet.
+static uint64_t makeNameKey(const uint8_t* name, size_t length, uint32_t networkType) {
+    return hashBytes(14695981039346656037ULL ^ networkType, name, length);
+}
+
+// Walks the TLV headers of the fields which follow the Name of an Interest up to its Nonce. The fields on the way,
+// such as the Selectors, are hashed into the key of the Name.
+static bool findNonce(const uint8_t* wire, size_t size, size_t offset, uint32_t& nonce, uint64_t& interestKey) {
+    const uint8_t* position = wire + offset;
+    const uint8_t* end = wire + size;
+    uint64_t type, length;
+    while(true) {
+        const uint8_t* field = position;
+        if(!ndn::tlv::readVarNumber(position, end, type) || !ndn::tlv::readVarNumber(position, end, length)
+           || length > static_cast<uint64_t>(end - position))
+            return false;
+        if(type == ndn::tlv::Nonce) {
+            // Read like the OppTransport always did, which matches the Nonces of the PIT out-records.
+            if(length != sizeof(uint32_t))
+                return false;
+            std::memcpy(&nonce, position, sizeof(uint32_t));
+            return true;
+        }
+        position += length;
+        interestKey = hashBytes(interestKey, field, position - field);
+    }
+}
+
+static void eraseFrom(std::unordered_multimap<uint64_t, uint64_t>& keys, uint64_t key, uint64_t queueId) {
+    auto range = keys.equal_range(key);
+    for(auto it = range.first; it != range.second; ++it) {
+        if(it->second == queueId) {
+            keys.erase(it);
+            return;
+        }
+    }
+}
+
+bool OppTrafficClass::matches(const Name& name, uint32_t networkType) const {
+    if(type == PacketType::INTEREST && networkType != ndn::tlv::Interest)
+        return false;
+    if(type == PacketType::DATA && networkType != ndn::tlv::Data)
+        return false;
+    return prefix.isPrefixOf(name);
+}
+
+// Packets matching none of the classes go to a default class, served last.
+OppSendQueue::OppSendQueue(const std::vector<OppTrafficClass>& classes)
+    : m_selected(NONE) {
+    bool hasDefault = false;
+    for(const OppTrafficClass& trafficClass : classes) {
+        m_classes.push_back(ClassQueue());
+        m_classes.back().trafficClass = trafficClass;
+        hasDefault = hasDefault || (trafficClass.prefix.empty() && trafficClass.type == OppTrafficClass::PacketType::ANY);
+    }
+    if(!hasDefault) {
+        m_classes.push_back(ClassQueue());
+        m_classes.back().trafficClass.priority = classes.empty() ? 0 : std::numeric_limits<uint8_t>::max();
+    }
+}
+
+size_t OppSendQueue::classify(const Block& packet) {
+    if(m_classes.size() == 1)
+        return 0;
+
+    uint64_t fragIndex = 0;
+    bool fragment = isFragment(packet, &fragIndex);
+    if(fragment && fragIndex > 0)
+        return m_fragmentClass;
+
+    // Only the first fragment of a large packet carries its Name.
+    Name name;
+    uint32_t networkType = 0;
+    size_t offset, length;
+    if(findNameValue(packet.wire(), packet.size(), offset, length, &networkType)) {
+        try {
+            name.wireDecode(ndn::encoding::makeBinaryBlock(ndn::tlv::Name, packet.wire() + offset, length));
+        } catch (const ndn::tlv::Error& e) {
+            NFD_LOG_WARN("Failed to decode the Name of an outgoing packet : " << e.what());
+            networkType = 0;
+        }
+    }
+
+    size_t trafficClass = m_classes.size() - 1;
+    for(size_t i = 0; i < m_classes.size(); i++) {
+        if(m_classes[i].trafficClass.matches(name, networkType)) {
+            trafficClass = i;
+            break;
+        }
+    }
+    if(fragment)
+        m_fragmentClass = trafficClass;
+    return trafficClass;
+}
+
+size_t OppSendQueue::getTopClass() const {
+    size_t top = 0;
+    for(size_t i = 1; i < m_classes.size(); i++)
+        if(m_classes[i].trafficClass.priority < m_classes[top].trafficClass.priority)
+            top = i;
+    return top;
+}
+
+bool OppSendQueue::isTopPriority(size_t trafficClass) const {
+    return m_classes[trafficClass].trafficClass.priority == m_classes[getTopClass()].trafficClass.priority;
+}
+
+size_t OppSendQueue::getLeastUrgentClass() const {
+    size_t least = NONE;
+    for(size_t i = 0; i < m_classes.size(); i++)
+        if(m_classes[i].live > 0
+           && (least == NONE || m_classes[i].trafficClass.priority >= m_classes[least].trafficClass.priority))
+            least = i;
+    return least;
+}
+
+void OppSendQueue::enqueue(OppQueuedPacket&& packet) {
+    index(packet);
+    ClassQueue& queue = m_classes[packet.trafficClass];
+    if(isFragment(packet.packet.packet)) {
+        queue.packets.push_back(std::move(packet));
+        queue.trailingFragments++;
+    } else
+        queue.packets.insert(queue.packets.end() - queue.trailingFragments, std::move(packet));
+}
+
+void OppSendQueue::requeueFront(OppQueuedPacket&& packet) {
+    index(packet);
+    m_classes[packet.trafficClass].packets.push_front(std::move(packet));
+}
+
+void OppSendQueue::requeueBack(OppQueuedPacket&& packet) {
+    index(packet);
+    ClassQueue& queue = m_classes[packet.trafficClass];
+    // The fragments at the back must stay contiguous.
+    if(isFragment(packet.packet.packet))
+        queue.trailingFragments++;
+    else
+        queue.trailingFragments = 0;
+    queue.packets.push_back(std::move(packet));
+}
+
+bool OppSendQueue::empty() const {
+    return m_index.empty();
+}
+
+size_t OppSendQueue::size() const {
+    return m_index.size();
+}
+
+size_t OppSendQueue::getBytes() const {
+    return m_bytes;
+}
+
+OppQueuedPacket& OppSendQueue::front() {
+    return m_classes[select()].packets.front();
+}
+
+OppQueuedPacket OppSendQueue::pop() {
+    size_t selected = select();
+    ClassQueue& queue = m_classes[selected];
+    queue.deficit -= std::min(queue.deficit, queue.packets.front().packet.packet.size());
+    return take(selected, true);
+}
+
+OppQueuedPacket OppSendQueue::popFront(size_t trafficClass) {
+    return take(trafficClass, true);
+}
+
+OppQueuedPacket OppSendQueue::popBack(size_t trafficClass) {
+    return take(trafficClass, false);
+}
+
+OppQueuedPacket OppSendQueue::take(size_t trafficClass, bool fromFront) {
+    discardTombstones(trafficClass);
+    ClassQueue& queue = m_classes[trafficClass];
+    OppQueuedPacket packet;
+    if(fromFront) {
+        packet = std::move(queue.packets.front());
+        queue.packets.pop_front();
+        queue.trailingFragments = std::min(queue.trailingFragments, queue.packets.size());
+    } else {
+        packet = std::move(queue.packets.back());
+        queue.packets.pop_back();
+        if(queue.trailingFragments > 0)
+            queue.trailingFragments--;
+    }
+    unindex(packet.queueId);
+    m_selected = NONE;
+    return packet;
+}
+
+size_t OppSendQueue::removeIf(const std::function<bool(const OppQueuedPacket&)>& predicate, bool onlyFirst) {
+    size_t removed = 0;
+    for(ClassQueue& queue : m_classes) {
+        size_t firstTrailing = queue.packets.size() - queue.trailingFragments;
+        size_t index = 0;
+        for(auto it = queue.packets.begin(); it != queue.packets.end(); index++) {
+            // Tombstones met on the way are discarded too.
+            bool isTombstone = !isLive(*it);
+            if(isTombstone || ((!onlyFirst || removed == 0) && predicate(*it))) {
+                if(index >= firstTrailing)
+                    queue.trailingFragments--;
+                if(!isTombstone) {
+                    unindex(it->queueId);
+                    removed++;
+                } else
+                    m_tombstones--;
+                it = queue.packets.erase(it);
+            } else
+                ++it;
+        }
+    }
+    m_selected = NONE;
+    return removed;
+}
+
+bool OppSendQueue::removeByNonce(uint32_t nonce, uint64_t& logRecord) {
+    auto it = m_nonces.find(nonce);
+    if(it == m_nonces.end())
+        return false;
+    logRecord = unindex(it->second).logRecord;
+    m_tombstones++;
+    purgeTombstones();
+    m_selected = NONE;
+    return true;
+}
+
+size_t OppSendQueue::removeByName(const Name& name, uint32_t networkType, std::vector<uint64_t>& logRecords) {
+    const Block& wire = name.wireEncode();
+    auto range = m_names.equal_range(makeNameKey(wire.value(), wire.value_size(), networkType));
+    std::vector<uint64_t> queueIds;
+    for(auto it = range.first; it != range.second; ++it)
+        queueIds.push_back(it->second);
+    return removeAll(queueIds, logRecords);
+}
+
+size_t OppSendQueue::removeSuperseded(const Block& interest, std::vector<uint64_t>& logRecords) {
+    IndexEntry entry = describe(interest);
+    if(!entry.hasInterestKey)
+        return 0;
+    auto range = m_interests.equal_range(entry.interestKey);
+    std::vector<uint64_t> queueIds;
+    for(auto it = range.first; it != range.second; ++it)
+        queueIds.push_back(it->second);
+    return removeAll(queueIds, logRecords);
+}
+
+size_t OppSendQueue::removeAll(const std::vector<uint64_t>& queueIds, std::vector<uint64_t>& logRecords) {
+    for(uint64_t queueId : queueIds)
+        logRecords.push_back(unindex(queueId).logRecord);
+    m_tombstones += queueIds.size();
+    purgeTombstones();
+    if(!queueIds.empty())
+        m_selected = NONE;
+    return queueIds.size();
+}
+
+OppSendQueue::InterestKeys OppSendQueue::getInterestKeys(const Block& packet) {
+    IndexEntry entry = describe(packet);
+    InterestKeys keys;
+    keys.hasNonce = entry.hasNonce;
+    keys.nonce = entry.nonce;
+    keys.hasInterestKey = entry.hasInterestKey;
+    keys.interestKey = entry.interestKey;
+    return keys;
+}
+
+// Finds the keys under which a packet is indexed. Only the headers of the packet up to its Nonce are read.
+OppSendQueue::IndexEntry OppSendQueue::describe(const Block& packet) {
+    IndexEntry entry = {0, packet.size(), 0, false, 0, false, 0, false, 0};
+    size_t offset, length;
+    uint32_t networkType;
+    if(!findNameValue(packet.wire(), packet.size(), offset, length, &networkType))
+        return entry;
+    entry.hasName = true;
+    entry.nameKey = makeNameKey(packet.wire() + offset, length, networkType);
+    if(networkType != ndn::tlv::Interest)
+        return entry;
+
+    uint64_t interestKey = entry.nameKey;
+    entry.hasNonce = findNonce(packet.wire(), packet.size(), offset + length, entry.nonce, interestKey);
+    // The first fragment of an Interest cannot stand for the whole of it.
+    if(entry.hasNonce && !isFragment(packet)) {
+        entry.hasInterestKey = true;
+        entry.interestKey = interestKey;
+    }
+    return entry;
+}
+
+// Gives the packet a new identifier, under which it is indexed.
+void OppSendQueue::index(OppQueuedPacket& packet) {
+    IndexEntry entry = describe(packet.packet.packet);
+    entry.trafficClass = packet.trafficClass;
+    entry.logRecord = packet.logRecord;
+
+    packet.queueId = m_nextId++;
+    if(entry.hasNonce)
+        m_nonces[entry.nonce] = packet.queueId;
+    if(entry.hasName)
+        m_names.emplace(entry.nameKey, packet.queueId);
+    if(entry.hasInterestKey)
+        m_interests.emplace(entry.interestKey, packet.queueId);
+    m_index.emplace(packet.queueId, entry);
+    m_bytes += entry.size;
+    m_classes[entry.trafficClass].live++;
+    m_selected = NONE;
+}
+
+// Forgets a packet which is not a tombstone; the packet becomes one if it is still in its class.
+OppSendQueue::IndexEntry OppSendQueue::unindex(uint64_t queueId) {
+    auto it = m_index.find(queueId);
+    IndexEntry entry = it->second;
+    m_index.erase(it);
+
+    if(entry.hasNonce) {
+        auto nonce = m_nonces.find(entry.nonce);
+        if(nonce != m_nonces.end() && nonce->second == queueId)
+            m_nonces.erase(nonce);
+    }
+    if(entry.hasName)
+        eraseFrom(m_names, entry.nameKey, queueId);
+    if(entry.hasInterestKey)
+        eraseFrom(m_interests, entry.interestKey, queueId);
+
+    m_bytes -= entry.size;
+    ClassQueue& queue = m_classes[entry.trafficClass];
+    if(--queue.live == 0)
+        queue.deficit = 0;
+    return entry;
+}
+
+bool OppSendQueue::isLive(const OppQueuedPacket& packet) const {
+    return m_index.count(packet.queueId) > 0;
+}
+
+// Discards the tombstones at the head and at the tail of a class, so that both ends hold packets.
+void OppSendQueue::discardTombstones(size_t trafficClass) {
+    ClassQueue& queue = m_classes[trafficClass];
+    while(!queue.packets.empty() && !isLive(queue.packets.front())) {
+        queue.packets.pop_front();
+        m_tombstones--;
+        queue.trailingFragments = std::min(queue.trailingFragments, queue.packets.size());
+    }
+    while(!queue.packets.empty() && !isLive(queue.packets.back())) {
+        queue.packets.pop_back();
+        m_tombstones--;
+        if(queue.trailingFragments > 0)
+            queue.trailingFragments--;
+    }
+}
+
+void OppSendQueue::purgeTombstones() {
+    if(m_tombstones >= MIN_TOMBSTONES_PURGED && m_tombstones > m_index.size())
+        removeIf([] (const OppQueuedPacket&) { return false; });
+}
+
+// Strict priority between the priority values, then Deficit Round Robin among the classes of the best one. A class
+// keeps being served while its deficit covers the packet at its head; it is credited with its quantum each time the
+// round robin reaches it otherwise.
+size_t OppSendQueue::select() {
+    if(m_selected != NONE)
+        return m_selected;
+
+    uint8_t best = std::numeric_limits<uint8_t>::max();
+    for(size_t i = 0; i < m_classes.size(); i++) {
+        discardTombstones(i);
+        if(m_classes[i].live > 0)
+            best = std::min(best, m_classes[i].trafficClass.priority);
+    }
+
+    while(true) {
+        ClassQueue& queue = m_classes[m_current];
+        if(queue.live > 0 && queue.trafficClass.priority == best) {
+            if(queue.deficit >= queue.packets.front().packet.packet.size())
+                return m_selected = m_current;
+            queue.deficit += QUANTUM * queue.trafficClass.weight;
+            if(queue.deficit >= queue.packets.front().packet.packet.size())
+                return m_selected = m_current;
+        }
+        m_current = (m_current + 1) % m_classes.size();
+    }
+}
+
+} // namespace face
+} // namespace nfd
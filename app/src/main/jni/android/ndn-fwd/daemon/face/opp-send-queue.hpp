@@ -0,0 +1,175 @@
+#ifndef COPELABS_NFD_ANDROID_OPP_SEND_QUEUE_HPP
+#define COPELABS_NFD_ANDROID_OPP_SEND_QUEUE_HPP
+
+#include <deque>
+#include <functional>
+#include <unordered_map>
+#include <vector>
+
+#include "daemon/face/transport.hpp"
+
+namespace nfd {
+namespace face {
+
+// A traffic class groups the packets under a Name prefix, optionally of a single type. The classes with the lowest
+// priority value are served first; the classes sharing the same priority share the link according to their weight.
+struct OppTrafficClass {
+    enum class PacketType {
+        ANY,
+        INTEREST,
+        DATA
+    };
+
+    std::string id = "default";
+    Name prefix;
+    PacketType type = PacketType::ANY;
+    uint8_t priority = 0;
+    size_t weight = 1;
+
+    bool matches(const Name& name, uint32_t networkType) const;
+};
+
+// A packet waiting to be sent by an OppTransport.
+struct OppQueuedPacket {
+    Transport::Packet packet;
+    // TxSequence given to the packet upon its first transmission, if any.
+    uint64_t txSequence = 0;
+    // Number of failed sends of the packet.
+    size_t failures = 0;
+    // Time after which the packet is useless to the peer and dropped instead of being sent.
+    time::steady_clock::TimePoint deadline = time::steady_clock::TimePoint::max();
+    // Index of the traffic class of the packet.
+    size_t trafficClass = 0;
+    // Time the packet was handed by the link service.
+    time::steady_clock::TimePoint enqueued;
+    // Record of the packet in the OppPacketLog of the OppTransport; 0 if the packet is not persisted.
+    uint64_t logRecord = 0;
+    // Identifier given by the OppSendQueue each time the packet enters it.
+    uint64_t queueId = 0;
+};
+
+// The OppSendQueue holds the packets of an OppTransport in one queue per traffic class. The next packet is taken from
+// the non-empty classes with the lowest priority value, among which the bytes are shared by Deficit Round Robin.
+// Within a class, packets are sent in order, except that whole packets are inserted ahead of the fragments of large
+// packets still queued in the class.
+//
+// The queued packets are indexed by the Nonce of the Interests and by Name, so that they are removed in constant time
+// whatever the depth of the queue. Such a removal only forgets the packet from the indexes, which leaves a tombstone in
+// its class; tombstones are discarded when they reach the head or the tail of their class.
+//
+// An Interest is also indexed by its Name together with the fields preceding its Nonce, which tell what Data it asks
+// for; an Interest enqueued while another one asking for the same Data waits supersedes it.
+class OppSendQueue {
+public:
+    // An empty list of classes makes a single class for all the packets.
+    explicit OppSendQueue(const std::vector<OppTrafficClass>& classes = {});
+
+    // Returns the index of the traffic class of a packet handed by the link service. The fragments of a packet
+    // following the first one belong to the class of the first.
+    size_t classify(const Block& packet);
+    // Index of the first class with the lowest priority value, used for the packets which are always urgent.
+    size_t getTopClass() const;
+    bool isTopPriority(size_t trafficClass) const;
+    // Index of a non-empty class with the highest priority value, from which packets are dropped first.
+    size_t getLeastUrgentClass() const;
+
+    // Appends a packet to its class.
+    void enqueue(OppQueuedPacket&& packet);
+    // Puts a packet back at the head or at the tail of its class.
+    void requeueFront(OppQueuedPacket&& packet);
+    void requeueBack(OppQueuedPacket&& packet);
+
+    bool empty() const;
+    size_t size() const;
+    // Total size of the packets queued.
+    size_t getBytes() const;
+    // The next packet to send; only valid while the queue is not modified.
+    OppQueuedPacket& front();
+    OppQueuedPacket pop();
+    // Removes the first or the last packet of a non-empty class, regardless of the scheduling.
+    OppQueuedPacket popFront(size_t trafficClass);
+    OppQueuedPacket popBack(size_t trafficClass);
+
+    // Removes the packets for which the predicate holds; at most the first one when onlyFirst is set. Returns the
+    // number of packets removed.
+    size_t removeIf(const std::function<bool(const OppQueuedPacket&)>& predicate, bool onlyFirst = false);
+    // Removes the Interest carrying a Nonce, if any; logRecord is set to its record in the OppPacketLog.
+    bool removeByNonce(uint32_t nonce, uint64_t& logRecord);
+    // Removes the packets of a type, Interest or Data, with a Name; their records in the OppPacketLog are appended
+    // to logRecords. Returns the number of packets removed.
+    size_t removeByName(const Name& name, uint32_t networkType, std::vector<uint64_t>& logRecords);
+    // Removes the queued Interests asking for the same Data as an Interest, whatever their Nonce; their records in the
+    // OppPacketLog are appended to logRecords. Returns the number of packets removed.
+    size_t removeSuperseded(const Block& interest, std::vector<uint64_t>& logRecords);
+
+    // Nonce of an Interest and key of the Data asked for by a whole Interest, under which the packets kept outside of
+    // the queue, such as those waiting in the OppPacketLog, are indexed like the queued ones.
+    struct InterestKeys {
+        bool hasNonce = false;
+        uint32_t nonce = 0;
+        bool hasInterestKey = false;
+        uint64_t interestKey = 0;
+    };
+    static InterestKeys getInterestKeys(const Block& packet);
+
+private:
+    size_t select();
+    OppQueuedPacket take(size_t trafficClass, bool fromFront);
+
+    struct IndexEntry;
+    void index(OppQueuedPacket& packet);
+    IndexEntry unindex(uint64_t queueId);
+    size_t removeAll(const std::vector<uint64_t>& queueIds, std::vector<uint64_t>& logRecords);
+    bool isLive(const OppQueuedPacket& packet) const;
+    void discardTombstones(size_t trafficClass);
+    void purgeTombstones();
+
+private:
+    struct ClassQueue {
+        OppTrafficClass trafficClass;
+        std::deque<OppQueuedPacket> packets;
+        // Number of fragments at the back of the queue, ahead of which whole packets are inserted.
+        size_t trailingFragments = 0;
+        // Bytes the class may still send in the current round.
+        size_t deficit = 0;
+        // Number of packets in the class which are not tombstones.
+        size_t live = 0;
+    };
+
+    struct IndexEntry {
+        size_t trafficClass;
+        size_t size;
+        uint64_t logRecord;
+        bool hasNonce;
+        uint32_t nonce;
+        bool hasName;
+        uint64_t nameKey;
+        // Whether the packet is a whole Interest, indexed by the Data it asks for.
+        bool hasInterestKey;
+        uint64_t interestKey;
+    };
+
+    static IndexEntry describe(const Block& packet);
+
+    std::vector<ClassQueue> m_classes;
+    size_t m_bytes = 0;
+    // Class served by the round robin, and class of the next packet; invalidated by any change to the queue.
+    size_t m_current = 0;
+    size_t m_selected;
+    // Class of the fragments being queued.
+    size_t m_fragmentClass = 0;
+
+    // Packets which are not tombstones, by identifier, and their identifiers by Nonce, by Name and type, and by the
+    // Data asked for.
+    std::unordered_map<uint64_t, IndexEntry> m_index;
+    std::unordered_map<uint32_t, uint64_t> m_nonces;
+    std::unordered_multimap<uint64_t, uint64_t> m_names;
+    std::unordered_multimap<uint64_t, uint64_t> m_interests;
+    uint64_t m_nextId = 1;
+    size_t m_tombstones = 0;
+};
+
+} // namespace face
+} // namespace nfd
+
+#endif //COPELABS_NFD_ANDROID_OPP_SEND_QUEUE_HPP
@@ -0,0 +1,232 @@
+#include "opp-socket-link.hpp"
+
+#include "core/global-io.hpp"
+#include "core/logger.hpp"
+
+#include "ndn-cxx/encoding/block-helpers.hpp"
+
+#include <boost/asio/write.hpp>
+
+namespace nfd {
+namespace face {
+
+NFD_LOG_INIT("OppSocketLink");
+
+OppSocketLink::OppSocketLink(const std::string& host, uint16_t port, const std::string& localUuid,
+                             bool offersNameCodec, const CompletionCallback& onComplete)
+    : m_endpoint(boost::asio::ip::address::from_string(host), port)
+    , m_socket(getGlobalIoService())
+    , m_datagramSocket(getGlobalIoService())
+    , m_onComplete(onComplete)
+    , m_handshake(OPP_TLV_HANDSHAKE) {
+    m_handshake.push_back(ndn::encoding::makeStringBlock(OPP_TLV_PEER_UUID, localUuid));
+    if(offersNameCodec)
+        m_handshake.push_back(ndn::encoding::makeNonNegativeIntegerBlock(OPP_TLV_FEATURES, OPP_FEATURE_NAME_CODEC));
+    m_handshake.encode();
+}
+
+bool OppSocketLink::hasEndpoint(const std::string& host, uint16_t port) const {
+    boost::system::error_code error;
+    boost::asio::ip::address address = boost::asio::ip::address::from_string(host, error);
+    return !error && m_endpoint == boost::asio::ip::tcp::endpoint(address, port);
+}
+
+// Queues a batch of packets for writing. The Blocks share the buffers of the packets; nothing is copied.
+void OppSocketLink::send(uint64_t lastSequence, std::vector<Block>&& packets, bool datagram) {
+    if(m_state == State::CLOSED)
+        return;
+
+    m_pending.push_back({lastSequence, std::move(packets), datagram});
+    writeNextBatch();
+}
+
+// Stops the link; no completion is notified afterwards, even for the batches that were pending.
+void OppSocketLink::close() {
+    m_state = State::CLOSED;
+    m_onComplete = nullptr;
+    m_pending.clear();
+    closeSocket();
+    boost::system::error_code ignored;
+    m_datagramSocket.close(ignored);
+}
+
+void OppSocketLink::connect() {
+    NFD_LOG_DEBUG("Connecting to " << m_endpoint);
+    m_state = State::CONNECTING;
+    m_socket.async_connect(m_endpoint,
+        std::bind(&OppSocketLink::onConnected, shared_from_this(), m_generation, _1));
+}
+
+void OppSocketLink::onConnected(uint64_t generation, const boost::system::error_code& error) {
+    if(m_state == State::CLOSED || generation != m_generation)
+        return;
+    if(error) {
+        fail(error);
+        return;
+    }
+
+    NFD_LOG_INFO("Connected to " << m_endpoint);
+    boost::system::error_code ignored;
+    m_socket.set_option(boost::asio::ip::tcp::no_delay(true), ignored);
+    m_state = State::CONNECTED;
+    m_needsHandshake = true;
+    // Until the peer replies, packets are written as they are.
+    m_isNameCodecAccepted = false;
+    m_nameCodec.reset();
+    m_reply.clear();
+    startDraining();
+    writeNextBatch();
+}
+
+// Writes the packets of the oldest pending batch with a single gathering write. The first batch written on a
+// connection is preceded by the handshake. Batches are written in order, whether they are datagrams or not, so that
+// completions remain cumulative.
+void OppSocketLink::writeNextBatch() {
+    if(m_isWriting || m_pending.empty())
+        return;
+
+    std::vector<boost::asio::const_buffer> buffers;
+    buffers.reserve(m_pending.front().packets.size() + 1);
+    if(m_pending.front().datagram) {
+        for(const Block& packet : m_pending.front().packets)
+            buffers.push_back(boost::asio::buffer(packet.wire(), packet.size()));
+        sendDatagram(buffers);
+        return;
+    }
+
+    if(m_state != State::CONNECTED) {
+        if(m_state == State::IDLE)
+            connect();
+        return;
+    }
+
+    if(m_needsHandshake) {
+        buffers.push_back(boost::asio::buffer(m_handshake.wire(), m_handshake.size()));
+        m_needsHandshake = false;
+    }
+    // Packets are coded when they are written rather than when they are queued, as the dictionary belongs to the
+    // connection on which they end up.
+    m_coded.clear();
+    for(const Block& packet : m_pending.front().packets) {
+        if(m_isNameCodecAccepted) {
+            m_coded.push_back(m_nameCodec.encode(packet));
+            buffers.push_back(boost::asio::buffer(m_coded.back().wire(), m_coded.back().size()));
+        } else
+            buffers.push_back(boost::asio::buffer(packet.wire(), packet.size()));
+    }
+
+    m_isWriting = true;
+    boost::asio::async_write(m_socket, buffers,
+        std::bind(&OppSocketLink::onBatchWritten, shared_from_this(), m_generation, _1));
+}
+
+void OppSocketLink::onBatchWritten(uint64_t generation, const boost::system::error_code& error) {
+    if(m_state == State::CLOSED || generation != m_generation)
+        return;
+    m_isWriting = false;
+    if(error) {
+        fail(error);
+        return;
+    }
+
+    uint64_t sequence = m_pending.front().lastSequence;
+    m_pending.pop_front();
+    if(m_onComplete)
+        m_onComplete(sequence, true);
+    writeNextBatch();
+}
+
+// Datagrams do not need the TCP connection; they are attributed to this device by the peer from its IP address.
+void OppSocketLink::sendDatagram(const std::vector<boost::asio::const_buffer>& buffers) {
+    boost::asio::ip::udp::endpoint endpoint(m_endpoint.address(), m_endpoint.port());
+    boost::system::error_code error;
+    if(!m_datagramSocket.is_open())
+        m_datagramSocket.open(endpoint.protocol(), error);
+    if(error) {
+        fail(error);
+        return;
+    }
+
+    m_isWriting = true;
+    uint64_t generation = m_generation;
+    auto self = shared_from_this();
+    m_datagramSocket.async_send_to(buffers, endpoint,
+        [this, self, generation] (const boost::system::error_code& error, size_t) {
+            onBatchWritten(generation, error);
+        });
+}
+
+void OppSocketLink::startDraining() {
+    uint64_t generation = m_generation;
+    auto self = shared_from_this();
+    m_socket.async_read_some(boost::asio::buffer(m_drain),
+        [this, self, generation] (const boost::system::error_code& error, size_t received) {
+            if(m_state != State::CONNECTED || generation != m_generation)
+                return;
+            if(error) {
+                NFD_LOG_DEBUG("Connection to " << m_endpoint << " closed by the peer.");
+                closeSocket();
+                m_state = State::IDLE;
+                // Batches still pending are written to a fresh connection.
+                writeNextBatch();
+            } else {
+                processReply(received);
+                startDraining();
+            }
+        });
+}
+
+// Collects the reply to the handshake, if the peer sends one, and enables the features it accepted. Anything else
+// written by the peer is ignored.
+void OppSocketLink::processReply(size_t received) {
+    static const size_t MAX_REPLY_SIZE = 32;
+    if(m_reply.size() >= MAX_REPLY_SIZE)
+        return;
+    m_reply.insert(m_reply.end(), m_drain.begin(), m_drain.begin() + std::min(received, MAX_REPLY_SIZE - m_reply.size()));
+
+    bool isOk = false;
+    Block reply;
+    std::tie(isOk, reply) = Block::fromBuffer(m_reply.data(), m_reply.size());
+    if(!isOk)
+        return;
+    // Nothing is read beyond the first TLV.
+    m_reply.resize(MAX_REPLY_SIZE);
+    if(reply.type() != OPP_TLV_HANDSHAKE_REPLY)
+        return;
+
+    try {
+        reply.parse();
+        Block::element_const_iterator features = reply.find(OPP_TLV_FEATURES);
+        if(features != reply.elements_end() && (readNonNegativeInteger(*features) & OPP_FEATURE_NAME_CODEC)) {
+            NFD_LOG_DEBUG("Peer at " << m_endpoint << " accepted the name codec.");
+            m_isNameCodecAccepted = true;
+        }
+    } catch (const ndn::tlv::Error& e) {
+        NFD_LOG_WARN("Invalid handshake reply from " << m_endpoint << " : " << e.what());
+    }
+}
+
+// The pending batches are lost; their packets are requeued by the transport which is notified of the failure of the
+// first one. As completions are cumulative, the later batches need not be notified.
+void OppSocketLink::fail(const boost::system::error_code& error) {
+    NFD_LOG_WARN("Link to " << m_endpoint << " failed : " << error.message());
+    closeSocket();
+    m_state = State::IDLE;
+
+    if(m_pending.empty())
+        return;
+    uint64_t sequence = m_pending.front().lastSequence;
+    m_pending.clear();
+    if(m_onComplete)
+        m_onComplete(sequence, false);
+}
+
+void OppSocketLink::closeSocket() {
+    m_generation++;
+    m_isWriting = false;
+    boost::system::error_code ignored;
+    m_socket.close(ignored);
+}
+
+} // namespace face
+} // namespace nfd
@@ -0,0 +1,111 @@
+#ifndef COPELABS_NFD_ANDROID_OPP_SOCKET_LINK_HPP
+#define COPELABS_NFD_ANDROID_OPP_SOCKET_LINK_HPP
+
+#include <array>
+#include <deque>
+#include <functional>
+#include <vector>
+
+#include <boost/asio/ip/tcp.hpp>
+#include <boost/asio/ip/udp.hpp>
+
+#include "core/common.hpp"
+#include "opp-name-codec.hpp"
+
+namespace nfd {
+namespace face {
+
+// The first TLV written on a connection identifies the peer which opened it and offers optional features. A peer
+// which supports some of them answers with the features it accepts; the others never write on the connection.
+// OppHandshake := OPP-HANDSHAKE-TYPE TLV-LENGTH OppPeerUuid [OppFeatures]
+// OppHandshakeReply := OPP-HANDSHAKE-REPLY-TYPE TLV-LENGTH OppFeatures
+// OppFeatures := OPP-FEATURES-TYPE TLV-LENGTH nonNegativeInteger
+enum OppTlvType {
+    OPP_TLV_HANDSHAKE = 128,
+    OPP_TLV_PEER_UUID = 129,
+    OPP_TLV_FEATURES = 130,
+    OPP_TLV_HANDSHAKE_REPLY = 131,
+    OPP_TLV_CODED_PACKET = 132,
+    // Written by the OpportunisticCompressor of the Java channel; reserved here so that no other TLV reuses it.
+    OPP_TLV_COMPRESSED_BATCH = 133,
+    // Carried in the Content of a Data, see OppNameSummary.
+    OPP_TLV_NAME_SUMMARY = 136,
+    OPP_TLV_HASH_COUNT = 137,
+    OPP_TLV_FILTER_BITS = 138
+};
+
+// Bits of OppFeatures.
+enum OppFeature {
+    // Packets may be written in the form produced by the OppNameCodec.
+    OPP_FEATURE_NAME_CODEC = 1
+};
+
+// The OppSocketLink is the TCP connection owned by an OppTransport in native sockets mode. It writes the batches of
+// packets handed by the transport directly to the listening socket of the peer, from the I/O thread of NFD. The
+// connection is established upon the first batch and re-established after it is lost. Batches made of a single small
+// packet may instead be sent as a UDP datagram to the same port.
+class OppSocketLink : public std::enable_shared_from_this<OppSocketLink> {
+public:
+    // Invoked with the sequence number of the last packet of a batch once the batch has been written, or once it failed.
+    typedef std::function<void(uint64_t sequence, bool succeeded)> CompletionCallback;
+
+    OppSocketLink(const std::string& host, uint16_t port, const std::string& localUuid, bool offersNameCodec,
+                  const CompletionCallback& onComplete);
+
+    bool hasEndpoint(const std::string& host, uint16_t port) const;
+    void send(uint64_t lastSequence, std::vector<Block>&& packets, bool datagram);
+    void close();
+
+private:
+    void connect();
+    void onConnected(uint64_t generation, const boost::system::error_code& error);
+    void writeNextBatch();
+    void onBatchWritten(uint64_t generation, const boost::system::error_code& error);
+    void sendDatagram(const std::vector<boost::asio::const_buffer>& buffers);
+    void startDraining();
+    void processReply(size_t received);
+    void fail(const boost::system::error_code& error);
+    void closeSocket();
+
+private:
+    enum class State {
+        IDLE,
+        CONNECTING,
+        CONNECTED,
+        CLOSED
+    };
+
+    struct Batch {
+        uint64_t lastSequence;
+        std::vector<Block> packets;
+        bool datagram;
+    };
+
+    boost::asio::ip::tcp::endpoint m_endpoint;
+    boost::asio::ip::tcp::socket m_socket;
+    boost::asio::ip::udp::socket m_datagramSocket;
+    CompletionCallback m_onComplete;
+    Block m_handshake;
+    // Whether the handshake remains to be written on the current connection.
+    bool m_needsHandshake = false;
+    State m_state = State::IDLE;
+    // Incremented each time the socket is closed, so that the handlers of a previous connection are ignored.
+    uint64_t m_generation = 0;
+    std::deque<Batch> m_pending;
+    bool m_isWriting = false;
+    // Peers only write the reply to the handshake on this connection; reading otherwise serves to notice when they
+    // close it.
+    std::array<uint8_t, 64> m_drain;
+    std::vector<uint8_t> m_reply;
+
+    // The Names of the packets written on the current connection are coded once the peer has accepted it.
+    bool m_isNameCodecAccepted = false;
+    OppNameCodec m_nameCodec;
+    // Coded packets of the batch being written.
+    std::vector<Block> m_coded;
+};
+
+} // namespace face
+} // namespace nfd
+
+#endif //COPELABS_NFD_ANDROID_OPP_SOCKET_LINK_HPP
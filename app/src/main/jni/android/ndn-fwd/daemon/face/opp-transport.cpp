@@ -6,20 +6,142 @@
 #include "ndn-cxx/util/face-uri.hpp"
 
 #include "ndn-cxx/encoding/tlv.hpp"
+#include "ndn-cxx/interest.hpp"
+#include "ndn-cxx/lp/packet.hpp"
+
+#include <boost/lexical_cast.hpp>
+
+#include <cmath>
+#include <iterator>
 
 namespace nfd {
 namespace face {
 
 NFD_LOG_INIT("OppTransport");
 
-OppTransport::OppTransport(const FaceUri& uri) : Transport() {
+// Delay after which the Acks that no outgoing packet carried are sent on their own.
+static const time::milliseconds ACK_DELAY(50);
+// Period at which expired packets are purged from the queue while it is not empty.
+static const time::seconds SWEEP_PERIOD(10);
+
+// Deadlines are persisted in system time, which unlike the steady time is meaningful after a restart.
+static time::system_clock::TimePoint toSystemTime(const time::steady_clock::TimePoint& deadline) {
+    if(deadline == time::steady_clock::TimePoint::max())
+        return time::system_clock::TimePoint::max();
+    return time::system_clock::now()
+        + time::duration_cast<time::system_clock::Duration>(deadline - time::steady_clock::now());
+}
+
+static time::steady_clock::TimePoint toSteadyTime(const time::system_clock::TimePoint& deadline) {
+    if(deadline == time::system_clock::TimePoint::max())
+        return time::steady_clock::TimePoint::max();
+    return time::steady_clock::now()
+        + time::duration_cast<time::steady_clock::Duration>(deadline - time::system_clock::now());
+}
+
+// Retrieves the parsed Interest or Data carried by a packet handed by the link service, which may be wrapped into an
+// LpPacket. Returns false if the packet is a fragment or carries neither.
+static bool getNetworkPacket(const Block& packet, Block& network) {
+    try {
+        network = packet;
+        if(packet.type() == ndn::lp::tlv::LpPacket) {
+            ndn::lp::Packet lpPacket(packet);
+            if(!lpPacket.has<ndn::lp::FragmentField>()
+               || (lpPacket.has<ndn::lp::FragCountField>() && lpPacket.get<ndn::lp::FragCountField>() > 1))
+                return false;
+            ndn::Buffer::const_iterator begin, end;
+            std::tie(begin, end) = lpPacket.get<ndn::lp::FragmentField>();
+            network = Block(&*begin, std::distance(begin, end));
+        }
+        if(network.type() != ndn::tlv::Interest && network.type() != ndn::tlv::Data)
+            return false;
+        network.parse();
+        return true;
+    } catch (const ndn::tlv::Error& e) {
+        NFD_LOG_WARN("Failed to decode an outgoing packet : " << e.what());
+        return false;
+    }
+}
+
+// Retrieves the Name of the Interest or Data carried by a packet handed by the link service.
+static bool getNetworkName(const Block& packet, Name& name) {
+    Block network;
+    if(!getNetworkPacket(packet, network))
+        return false;
+    try {
+        name.wireDecode(network.get(ndn::tlv::Name));
+        return true;
+    } catch (const ndn::tlv::Error& e) {
+        NFD_LOG_WARN("Failed to decode the Name of an outgoing packet : " << e.what());
+        return false;
+    }
+}
+
+OppTransport::OppTransport(const FaceUri& uri, const Options& options, shared_ptr<OppGroupState> group,
+                           shared_ptr<OppQueueBudget> budget)
+    : Transport(), m_options(options), m_group(group), m_sendQueue(options.trafficClasses), m_budget(budget) {
     this->setLocalUri(uri);
     this->setRemoteUri(uri);
     this->setState(nfd::face::TransportState::DOWN);
     this->setScope(ndn::nfd::FACE_SCOPE_NON_LOCAL);
     this->setPersistency(ndn::nfd::FacePersistency::FACE_PERSISTENCY_PERMANENT);
     this->setLinkType(ndn::nfd::LINK_TYPE_POINT_TO_POINT);
-    this->setMtu(MTU_UNLIMITED);
+
+    // opp://<uuid>/udp or the datagrams option selects the datagram mode, in which small packets are sent over UDP.
+    // Without reliability, the datagrams lost, such as those sent before the address of the peer is resolved, would
+    // never be sent again.
+    if(uri.getPath() == "/udp" || m_options.datagrams) {
+        if(m_options.reliability)
+            m_datagramThreshold = m_options.datagramThreshold;
+        else
+            NFD_LOG_WARN("Datagram mode of " << uri << " requires reliability. Using TCP only.");
+    }
+
+    // oppmc://<broadcast>:<port>/<prefix length> is the group Face; every packet is broadcast to the members of the group.
+    if(uri.getScheme() == "oppmc") {
+        m_isGroup = true;
+        m_datagramThreshold = ndn::MAX_NDN_PACKET_SIZE;
+        this->setLinkType(ndn::nfd::LINK_TYPE_MULTI_ACCESS);
+    }
+
+    // In native sockets mode, the packets are handed to the OppSocketLink and never go through a ring.
+    if(!usesNativeSockets())
+        m_ring = make_shared<ndn::Buffer>(m_options.ringBytes);
+
+    // Nobody acknowledges the packets broadcast by the group Face.
+    if(m_options.reliability && !m_isGroup)
+        m_reliability = make_unique<OppReliability>();
+
+    // Larger packets are fragmented by the GenericLinkService, leaving room for the sequence numbers and Acks.
+    this->setMtu(m_options.mtu - (m_reliability != nullptr ? OppReliability::HEADROOM : 0));
+
+    if(m_budget != nullptr)
+        m_budget->transports.insert(this);
+
+    // Broadcasts are not worth persisting. The packets persisted for the peer before a restart are sent first.
+    if(!m_options.logDirectory.empty() && !m_isGroup) {
+        try {
+            m_log = make_unique<OppPacketLog>(m_options.logDirectory + "/" + uri.getHost(), m_options.logSegmentBytes,
+                                              std::max<size_t>(1, m_options.logBytes / m_options.logSegmentBytes));
+            // The recovered packets are read once to index them; they then wait in the log like the others.
+            for(const OppPacketLog::Record& record : m_log->takeRecovered()) {
+                try {
+                    spill(record, OppSendQueue::getInterestKeys(m_log->read(record.id)));
+                } catch (const ndn::tlv::Error& e) {
+                    NFD_LOG_WARN("Discarding unreadable packet from the log : " << e.what());
+                    m_log->consume(record.id);
+                }
+            }
+        } catch (const OppPacketLog::Error& e) {
+            NFD_LOG_ERROR("Keeping the queue of " << uri << " in memory : " << e.what());
+        }
+    }
+}
+
+OppTransport::~OppTransport() {
+    if(m_budget != nullptr)
+        m_budget->transports.erase(this);
+    clearEndpoint();
 }
 
 // Used to change the state of this OppTransport. When the state changes to UP, we need to start
@@ -27,8 +149,30 @@ OppTransport::OppTransport(const FaceUri& uri) : Transport() {
 void OppTransport::commuteState(TransportState newState) {
     NFD_LOG_DEBUG("Commuting state.");
     this->setState(newState);
-    if(newState == TransportState::UP)
+    if(m_isGroup && m_group != nullptr) {
+        m_group->isUp = (newState == TransportState::UP);
+        m_group->broadcastAddress = this->getRemoteUri().getHost();
+        m_group->prefixLength = 0;
+        try {
+            const std::string& path = this->getRemoteUri().getPath();
+            if(path.size() > 1)
+                m_group->prefixLength = std::min<size_t>(boost::lexical_cast<size_t>(path.substr(1)), 32);
+        } catch (const boost::bad_lexical_cast&) {
+            NFD_LOG_WARN("Invalid prefix length in " << this->getRemoteUri());
+        }
+    }
+    if(newState == TransportState::UP) {
+        // A new contact starts afresh, without waiting for a retry scheduled during the previous one.
+        resetRetries();
+        m_contactStart = time::steady_clock::now();
+        m_isCodelAbove = false;
+        m_isCodelDropping = false;
+        // Completions still pending from the previous contact are ignored; those packets are sent again.
+        requeueInFlight();
+        requeueUnacknowledged();
+        scheduleAck();
         sendNextPacket();
+    }
 }
 
 // When the OppTransport closes. Part of the Transport interface.
@@ -38,75 +182,742 @@ void OppTransport::doClose() {
     this->close();
 }
 
-// Initiates the sending of the next pending packet.
+// Initiates the sending of pending packets until the window of packets in flight is full. Pending packets are
+// copied into the ring and signalled to the OpportunisticChannel in batches bounded both in number of packets and
+// in bytes. The OppSendQueue decides which traffic class each packet is taken from. While a retry is scheduled, only
+// the retry resumes the sending, so that neither new packets nor completions bypass the backoff.
 void OppTransport::sendNextPacket() {
-    if(!m_sendQueue.empty())
-        performSend(this->getFace()->getId(), m_sendQueue.front().packet);
-    else
+    if(m_isRetryScheduled) {
+        NFD_LOG_DEBUG("Retry scheduled. Queuing.");
+        return;
+    }
+    refillFromLog();
+    if(m_sendQueue.empty())
         NFD_LOG_DEBUG("Queue empty.");
-}
 
-void OppTransport::removePacket(uint32_t nonce) {
-    std::deque<Packet>::iterator it = find_if(m_sendQueue.begin(), m_sendQueue.end(),
-    [&nonce] (const Packet &current) {
-        // Only Interest packets have a Nonce. Ignore Data packets.
-        if(current.packet.type() != ndn::tlv::Interest)
-            return false;
+    time::steady_clock::TimePoint now = time::steady_clock::now();
+    while(this->getState() == TransportState::UP && !m_sendQueue.empty() && isWindowOpen(m_sendQueue.front())) {
+        if(dropIfExpired(m_sendQueue.front(), now) || dropIfLate(m_sendQueue.front(), now)) {
+            m_sendQueue.pop();
+            continue;
+        }
+        if(usesNativeSockets() && m_link == nullptr) {
+            NFD_LOG_DEBUG("No endpoint known for the peer. Queuing.");
+            break;
+        }
+        if(m_link == nullptr && getWireSize(m_sendQueue.front()) > m_ring->size()) {
+            NFD_LOG_WARN("Dropping packet of " << m_sendQueue.front().packet.packet.size() << " bytes larger than the ring.");
+            release(m_sendQueue.pop());
+            continue;
+        }
+
+        uint64_t firstSequence = m_nextSequence;
+        size_t start = m_link == nullptr ? (m_ringHead + m_ringUsed) % m_ring->size() : 0;
+        size_t count = 0;
+        size_t batchBytes = 0;
+        std::vector<Block> batch;
+        // A packet sent as a datagram always forms a batch on its own.
+        bool datagram = isDatagram(m_sendQueue.front());
+        while(!m_sendQueue.empty()
+              && isWindowOpen(m_sendQueue.front())
+              && count < (datagram ? 1 : m_options.batchPackets)
+              && isDatagram(m_sendQueue.front()) == datagram
+              && (m_link != nullptr || m_ringUsed + getWireSize(m_sendQueue.front()) <= m_ring->size())
+              && (count == 0 || batchBytes + getWireSize(m_sendQueue.front()) <= m_options.batchBytes)) {
+            if(dropIfExpired(m_sendQueue.front(), now) || dropIfLate(m_sendQueue.front(), now)) {
+                m_sendQueue.pop();
+                continue;
+            }
+            InFlightPacket current = {m_nextSequence++, m_sendQueue.pop()};
+            refillFromLog();
+            Block wire = prepareForSending(current.queued);
+            if(m_link != nullptr)
+                batch.push_back(wire);
+            else {
+                writeToRing(wire);
+                m_ringReservations.emplace_back(current.sequence, wire.size());
+            }
+            batchBytes += wire.size();
+            count++;
+            m_inFlight.push_back(std::move(current));
+        }
 
-        uint32_t currentNonce;
-        Block encodedNonce = current.packet.get(ndn::tlv::Nonce);
-        if (encodedNonce.value_size() == sizeof(uint32_t))
-            currentNonce = *reinterpret_cast<const uint32_t*>(encodedNonce.value());
-        else {
-            currentNonce = readNonNegativeInteger(encodedNonce);
+        if(count == 0) {
+            NFD_LOG_DEBUG("Ring full. Waiting for completions.");
+            break;
         }
 
-        NFD_LOG_DEBUG("Packet with Nonce " << currentNonce << " " << nonce);
-        return (nonce == currentNonce);
+        NFD_LOG_DEBUG("Sending batch of " << count << " packets, " << batchBytes << " bytes" << (datagram ? " as a datagram." : "."));
+        if(m_link != nullptr)
+            m_link->send(m_nextSequence - 1, std::move(batch), datagram);
+        else if(!performSend(this->getFace()->getId(), firstSequence, count, start, batchBytes, datagram)) {
+            // Nothing was handed to the channel; the batch will never complete.
+            for(size_t i = 0; i < count; i++) {
+                m_ringUsed -= m_ringReservations.back().second;
+                m_ringReservations.pop_back();
+            }
+            onSendFailed();
+            break;
+        }
+    }
+}
+
+// Whether the window leaves room for a packet. The classes other than the most urgent ones leave part of the window
+// free, so that an urgent packet never waits for a whole window of bulk traffic to complete.
+bool OppTransport::isWindowOpen(const QueuedPacket& packet) const {
+    size_t window = m_options.window;
+    if(!m_sendQueue.isTopPriority(packet.trafficClass))
+        window -= std::min(window - 1, m_options.reservedWindow);
+    return m_inFlight.size() < window;
+}
+
+// Whether a packet is small enough to be sent as a datagram on a Face created in datagram mode.
+bool OppTransport::isDatagram(const QueuedPacket& packet) const {
+    return getWireSize(packet) <= m_datagramThreshold;
+}
+
+// Upper bound of the size of a queued packet once prepared for sending.
+size_t OppTransport::getWireSize(const QueuedPacket& packet) const {
+    return packet.packet.packet.size() + (m_reliability != nullptr ? OppReliability::HEADROOM : 0);
+}
+
+// Returns the bytes to send for a queued packet. With reliability, the packet is wrapped anew at each transmission
+// so that it carries the Acks pending at that time, but it keeps its TxSequence.
+Block OppTransport::prepareForSending(QueuedPacket& packet) {
+    if(m_reliability == nullptr)
+        return packet.packet.packet;
+    return m_reliability->wrap(packet.packet.packet, packet.txSequence);
+}
+
+// While the group Face and this Face are both UP and the peer is in the subnet the group Face broadcasts to, the peer
+// receives the packets under the group prefixes from the group Face; sending them again over this Face would only
+// waste airtime. Nobody acknowledges a broadcast, so a Face with reliability still sends its own copy, which is the
+// only one known to reach the peer. While this Face is DOWN, such packets are still queued so that they reach the
+// peer at its next contact.
+bool OppTransport::isCoveredByGroup(const Block& packet) const {
+    if(m_isGroup || m_group == nullptr || !m_group->isUp || this->getState() != TransportState::UP
+       || m_reliability != nullptr || !isGroupMember())
+        return false;
+
+    Name name;
+    if(!getNetworkName(packet, name))
+        return false;
+    for(const Name& prefix : m_group->prefixes)
+        if(prefix.isPrefixOf(name))
+            return true;
+    return false;
+}
+
+bool OppTransport::isGroupMember() const {
+    if(m_group->prefixLength == 0)
+        return false;
+    boost::system::error_code error;
+    boost::asio::ip::address_v4 peer = boost::asio::ip::address_v4::from_string(m_peerHost, error);
+    if(error)
+        return false;
+    boost::asio::ip::address_v4 broadcast = boost::asio::ip::address_v4::from_string(m_group->broadcastAddress, error);
+    if(error)
+        return false;
+
+    uint32_t hostMask = m_group->prefixLength == 32 ? 0 : 0xFFFFFFFFu >> m_group->prefixLength;
+    return peer != broadcast && (peer.to_ulong() | hostMask) == broadcast.to_ulong();
+}
+
+// Copies a packet at the end of the used part of the ring, wrapping around its end if necessary.
+void OppTransport::writeToRing(const Block& packet) {
+    size_t tail = (m_ringHead + m_ringUsed) % m_ring->size();
+    size_t first = std::min(packet.size(), m_ring->size() - tail);
+    std::copy(packet.begin(), packet.begin() + first, m_ring->begin() + tail);
+    std::copy(packet.begin() + first, packet.end(), m_ring->begin());
+    m_ringUsed += packet.size();
+}
+
+// Releases the bytes of all the packets up to the given sequence number.
+void OppTransport::releaseRing(uint64_t sequence) {
+    while(!m_ringReservations.empty() && m_ringReservations.front().first <= sequence) {
+        m_ringHead = (m_ringHead + m_ringReservations.front().second) % m_ring->size();
+        m_ringUsed -= m_ringReservations.front().second;
+        m_ringReservations.pop_front();
+    }
+    if(m_ringUsed == 0)
+        m_ringHead = 0;
+}
+
+shared_ptr<ndn::Buffer> OppTransport::getRing() const {
+    return m_ring;
+}
+
+// The group Face always broadcasts through the OpportunisticChannel.
+bool OppTransport::usesNativeSockets() const {
+    return m_options.nativeSockets && !m_isGroup;
+}
+
+void OppTransport::setPeerHost(const std::string& host) {
+    m_peerHost = host;
+}
+
+// Sets the listening socket of the peer to which packets are written in native sockets mode. The connection itself is
+// established upon the first send.
+void OppTransport::setEndpoint(const std::string& host, uint16_t port, const std::string& localUuid) {
+    if(m_link != nullptr && m_link->hasEndpoint(host, port))
+        return;
+
+    clearEndpoint();
+    NFD_LOG_INFO("Endpoint of face #" << getFace()->getId() << " set to " << host << ":" << port);
+    try {
+        m_link = make_shared<OppSocketLink>(host, port, localUuid, m_options.nameCodec,
+                                            [this] (uint64_t sequence, bool succeeded) {
+            onSendComplete(sequence, succeeded);
+        });
+    } catch (const boost::system::system_error& e) {
+        NFD_LOG_ERROR("Invalid endpoint " << host << ":" << port << " : " << e.what());
+    }
+}
+
+// Forgets the endpoint of the peer. Packets in flight on the previous connection are sent again on the next one.
+void OppTransport::clearEndpoint() {
+    resetRetries();
+    if(m_link != nullptr) {
+        m_link->close();
+        m_link.reset();
+        requeueInFlight();
+    }
+}
+
+// Puts the packets in flight back at the front of the queue, in their original order.
+void OppTransport::requeueInFlight() {
+    while(!m_inFlight.empty()) {
+        m_sendQueue.requeueFront(std::move(m_inFlight.back().queued));
+        m_inFlight.pop_back();
+    }
+}
+
+// Puts the packets written during a previous contact but never acknowledged by the peer at the front of the queue,
+// in their original order. The peer receives again only the packets it does not hold.
+void OppTransport::requeueUnacknowledged() {
+    if(m_reliability == nullptr)
+        return;
+
+    std::map<uint64_t, OppReliability::UnacknowledgedPacket> unacknowledged = m_reliability->takeUnacknowledged();
+    if(!unacknowledged.empty())
+        NFD_LOG_INFO("Resuming " << unacknowledged.size() << " unacknowledged packets on face #" << getFace()->getId());
+    for(auto it = unacknowledged.rbegin(); it != unacknowledged.rend(); ++it) {
+        QueuedPacket queued;
+        queued.packet = std::move(it->second.packet);
+        queued.deadline = it->second.deadline;
+        queued.txSequence = it->first;
+        queued.trafficClass = it->second.trafficClass;
+        queued.logRecord = it->second.logRecord;
+        m_sendQueue.requeueFront(std::move(queued));
+    }
+}
+
+// Forgets the persisted copy of the packets the peer acknowledged. Those it did not acknowledge are still in the log
+// after a restart, and are sent again.
+void OppTransport::releaseAcknowledged() {
+    if(m_reliability == nullptr)
+        return;
+    for(uint64_t logRecord : m_reliability->takeReleasedRecords())
+        if(m_log != nullptr && logRecord != 0)
+            m_log->consume(logRecord);
+}
+
+// Makes sure the pending Acks reach the peer even if no packet is sent to it in the meantime.
+void OppTransport::scheduleAck() {
+    if(m_reliability == nullptr || m_isAckScheduled || !m_reliability->hasPendingAcks())
+        return;
+
+    m_isAckScheduled = true;
+    m_ackEvent = scheduler::schedule(ACK_DELAY, [this] {
+        m_isAckScheduled = false;
+        // Acks are only sent while the peer is reachable; they are otherwise carried at the next contact.
+        if(this->getState() != TransportState::UP || !m_reliability->hasPendingAcks())
+            return;
+        QueuedPacket ack;
+        ack.packet = Packet(OppReliability::makeAckPacket());
+        ack.trafficClass = m_sendQueue.getTopClass();
+        m_sendQueue.requeueFront(std::move(ack));
+        sendNextPacket();
     });
+}
 
-    if(it != m_sendQueue.end()) {
+void OppTransport::removePacket(uint32_t nonce) {
+    uint64_t logRecord = 0;
+    if(m_sendQueue.removeByNonce(nonce, logRecord)) {
+        if(m_log != nullptr && logRecord != 0)
+            m_log->consume(logRecord);
         NFD_LOG_INFO("Found pending packet in " << getFace()->getId());
-        m_sendQueue.erase(it);
+        return;
+    }
+
+    auto spilled = m_spilledNonces.find(nonce);
+    if(spilled != m_spilledNonces.end()) {
+        m_log->consume(spilled->second->record.id);
+        unspill(spilled->second);
+        NFD_LOG_INFO("Found pending packet in the log of " << getFace()->getId());
     }
 }
 
 int OppTransport::getQueueSize() {
-    return m_sendQueue.size();
+    return m_sendQueue.size() + m_spilled.size() + m_inFlight.size();
 }
 
-void OppTransport::onSendComplete(bool succeeded) {
-    NFD_LOG_INFO("onSendComplete. Succeeded ? " << succeeded);
+uint64_t OppTransport::getRetryCount() const {
+    return m_retryCount;
+}
+
+// Includes the stall in progress, if any.
+time::milliseconds OppTransport::getStallTime() const {
+    time::steady_clock::Duration stallTime = m_stallTime;
+    if(m_consecutiveFailures > 0)
+        stallTime += time::steady_clock::now() - m_stallStart;
+    return time::duration_cast<time::milliseconds>(stallTime);
+}
+
+// Puts the packets in flight back in the queue and schedules a retry. Packets which exhausted their retry budget are
+// dropped. A packet at the head of the queue which keeps failing is moved to the back so that it does not hold the
+// packets behind it forever.
+void OppTransport::onSendFailed() {
+    if(m_consecutiveFailures++ == 0)
+        m_stallStart = time::steady_clock::now();
+    m_retryCount++;
+
+    // The packets in flight precede those still queued; they are put back starting from the last one.
+    while(!m_inFlight.empty()) {
+        QueuedPacket failed = std::move(m_inFlight.back().queued);
+        bool isHeadOfLine = m_inFlight.size() == 1;
+        m_inFlight.pop_back();
+
+        failed.failures++;
+        if(failed.failures >= m_options.retryBudget) {
+            NFD_LOG_WARN("Dropping packet after " << failed.failures << " failed sends.");
+            release(failed);
+        } else if(isHeadOfLine && m_options.skipAfter > 0 && failed.failures % m_options.skipAfter == 0) {
+            NFD_LOG_DEBUG("Moving packet aside after " << failed.failures << " failed sends.");
+            m_sendQueue.requeueBack(std::move(failed));
+        } else
+            m_sendQueue.requeueFront(std::move(failed));
+    }
+
+    time::milliseconds delay = m_options.retryDelay;
+    for(size_t i = 1; i < m_consecutiveFailures && delay < m_options.maxRetryDelay; i++)
+        delay *= 2;
+    delay = std::min(delay, m_options.maxRetryDelay);
+    NFD_LOG_DEBUG("Retrying in " << delay << " after " << m_consecutiveFailures << " consecutive failures.");
+    m_isRetryScheduled = true;
+    m_retryEvent = scheduler::schedule(delay, [this] {
+        m_isRetryScheduled = false;
+        sendNextPacket();
+    });
+}
+
+uint64_t OppTransport::getExpiredBytes() const {
+    return m_expiredBytes;
+}
+
+// An Interest is useless once its InterestLifetime has elapsed, and a Data once its FreshnessPeriod has; the peer would
+// ignore the first and only use the second to satisfy Interests which do not require fresh Data. Other packets, as
+// well as Data without a FreshnessPeriod, are only bounded by the carry time. The fragments of a packet do not carry
+// its fields and are bounded by the carry time too.
+time::steady_clock::TimePoint OppTransport::getDeadline(const Block& packet) const {
+    time::steady_clock::TimePoint now = time::steady_clock::now();
+    time::steady_clock::TimePoint deadline = time::steady_clock::TimePoint::max();
+    if(m_options.carryTime > time::milliseconds::zero())
+        deadline = now + m_options.carryTime;
+
+    Block network;
+    if(!getNetworkPacket(packet, network))
+        return deadline;
+    try {
+        time::milliseconds lifetime = time::milliseconds::zero();
+        if(network.type() == ndn::tlv::Interest) {
+            Block::element_const_iterator field = network.find(ndn::tlv::InterestLifetime);
+            lifetime = field != network.elements_end() ? time::milliseconds(readNonNegativeInteger(*field))
+                                                       : ndn::DEFAULT_INTEREST_LIFETIME;
+        } else {
+            Block::element_const_iterator metaInfo = network.find(ndn::tlv::MetaInfo);
+            if(metaInfo != network.elements_end()) {
+                metaInfo->parse();
+                Block::element_const_iterator field = metaInfo->find(ndn::tlv::FreshnessPeriod);
+                if(field != metaInfo->elements_end())
+                    lifetime = time::milliseconds(readNonNegativeInteger(*field));
+            }
+        }
+        // A FreshnessPeriod of 0 makes the Data stale right away, but it still satisfies Interests which do not
+        // require fresh Data; such Data is only bounded by the carry time.
+        if(lifetime > time::milliseconds::zero())
+            deadline = std::min(deadline, now + lifetime);
+    } catch (const ndn::tlv::Error& e) {
+        NFD_LOG_WARN("Failed to decode the lifetime of an outgoing packet : " << e.what());
+    }
+    return deadline;
+}
+
+// Accounts for a packet if it has expired. The caller removes it from the queue.
+bool OppTransport::dropIfExpired(const QueuedPacket& packet, const time::steady_clock::TimePoint& now) {
+    if(packet.deadline >= now)
+        return false;
+    m_expiredCount++;
+    m_expiredBytes += packet.packet.packet.size();
+    NFD_LOG_DEBUG("Dropping expired packet of " << packet.packet.packet.size() << " bytes.");
+    release(packet);
+    return true;
+}
+
+void OppTransport::scheduleSweep() {
+    if(m_isSweepScheduled)
+        return;
+    m_isSweepScheduled = true;
+    m_sweepEvent = scheduler::schedule(SWEEP_PERIOD, [this] {
+        m_isSweepScheduled = false;
+        sweepExpired();
+    });
+}
+
+// Purges the expired packets from the whole queue, so that they do not hold memory until the next contact.
+void OppTransport::sweepExpired() {
+    time::steady_clock::TimePoint now = time::steady_clock::now();
+    uint64_t expiredBytes = m_expiredBytes;
+    m_sendQueue.removeIf([this, &now] (const QueuedPacket& packet) { return dropIfExpired(packet, now); });
+
+    // The packets waiting in the log are dropped without being read back.
+    time::system_clock::TimePoint systemNow = time::system_clock::now();
+    for(auto it = m_spilled.begin(); it != m_spilled.end();) {
+        if(it->record.deadline < systemNow) {
+            m_expiredCount++;
+            m_expiredBytes += it->record.size;
+            m_log->consume(it->record.id);
+            it = unspill(it);
+        } else
+            ++it;
+    }
+
+    if(m_expiredBytes > expiredBytes)
+        NFD_LOG_INFO("Purged " << (m_expiredBytes - expiredBytes) << " bytes of expired packets from face #"
+                     << getFace()->getId() << ", " << m_expiredBytes << " bytes in " << m_expiredCount << " packets so far.");
+    if(!m_sendQueue.empty() || !m_spilled.empty())
+        scheduleSweep();
+}
+
+// The packets waiting in the log count as well; they would otherwise escape the budgets.
+size_t OppTransport::getQueuedBytes() const {
+    return m_sendQueue.getBytes() + m_spilledBytes;
+}
+
+size_t OppTransport::getQueueBudget() const {
+    return m_options.queueBytes;
+}
+
+uint64_t OppTransport::getDroppedCount() const {
+    return m_droppedCount;
+}
+
+uint64_t OppTransport::getDroppedBytes() const {
+    return m_droppedBytes;
+}
+
+// Keeps the bytes queued by this Face, then by all the Faces, within their budgets. The global budget is enforced on
+// the Face holding the most bytes, usually one whose peer has been out of range for long.
+void OppTransport::enforceBudgets() {
+    while(m_options.queueBytes > 0 && getQueuedBytes() > m_options.queueBytes)
+        dropForBudget();
+
+    if(m_budget == nullptr || m_budget->capacity == 0)
+        return;
+    while(true) {
+        size_t total = 0;
+        OppTransport* largest = nullptr;
+        for(OppTransport* transport : m_budget->transports) {
+            total += transport->getQueuedBytes();
+            if(largest == nullptr || transport->getQueuedBytes() > largest->getQueuedBytes())
+                largest = transport;
+        }
+        if(total <= m_budget->capacity || !largest->dropForBudget())
+            break;
+    }
+}
+
+// Drops the newest or the oldest packet, according to the drop policy. The packets waiting in the log are the newest
+// ones and never belong to the most urgent traffic class, so they are dropped first by the tail drop, and only once
+// the memory is empty by the other policies. Returns false if the queue is empty.
+bool OppTransport::dropForBudget() {
+    if(!m_spilled.empty() && (m_options.dropPolicy == OppDropPolicy::TAIL || m_sendQueue.empty())) {
+        SpilledIterator dropped = (m_options.dropPolicy == OppDropPolicy::TAIL) ? std::prev(m_spilled.end())
+                                                                                : m_spilled.begin();
+        m_droppedCount++;
+        m_droppedBytes += dropped->record.size;
+        NFD_LOG_DEBUG("Dropping packet of " << dropped->record.size << " bytes over budget from the log of face #"
+                      << getFace()->getId() << ", " << m_droppedBytes << " bytes in " << m_droppedCount << " packets so far.");
+        m_log->consume(dropped->record.id);
+        unspill(dropped);
+        return true;
+    }
+    return dropFromMemory();
+}
+
+// Drops the newest or the oldest packet of the least urgent traffic class queued in memory, according to the drop
+// policy. Returns false if no packet is queued in memory.
+bool OppTransport::dropFromMemory() {
+    if(m_sendQueue.empty())
+        return false;
+
+    size_t trafficClass = m_sendQueue.getLeastUrgentClass();
+    QueuedPacket dropped = (m_options.dropPolicy == OppDropPolicy::TAIL) ? m_sendQueue.popBack(trafficClass)
+                                                                         : m_sendQueue.popFront(trafficClass);
+    m_droppedCount++;
+    m_droppedBytes += dropped.packet.packet.size();
+    release(dropped);
+    NFD_LOG_DEBUG("Dropping packet of " << dropped.packet.packet.size() << " bytes over budget from face #"
+                  << getFace()->getId() << ", " << m_droppedBytes << " bytes in " << m_droppedCount << " packets so far.");
+    return true;
+}
+
+// Releases memory on request of the system: drops packets, following the drop policy, until at most the given
+// fraction of the queued bytes remains.
+void OppTransport::trimQueue(double keep) {
+    size_t target = static_cast<size_t>(m_sendQueue.getBytes() * keep);
+    size_t before = m_sendQueue.getBytes();
+    while(m_sendQueue.getBytes() > target)
+        if(!dropFromMemory())
+            break;
+    if(m_sendQueue.getBytes() < before)
+        NFD_LOG_INFO("Trimmed " << (before - m_sendQueue.getBytes()) << " bytes from the queue of face #" << getFace()->getId());
+}
+
+// With the CODEL policy, once the packets at the head of the queue have waited longer than the target for a whole
+// interval, one is dropped at every interval divided by the square root of the number of drops so far, until a
+// packet waits less than the target again. A queue holding no more than a packet is never considered too long.
+bool OppTransport::dropIfLate(const QueuedPacket& packet, const time::steady_clock::TimePoint& now) {
+    if(m_options.dropPolicy != OppDropPolicy::CODEL || OppReliability::isAckPacket(packet.packet.packet))
+        return false;
+
+    time::steady_clock::Duration sojourn = now - std::max(packet.enqueued, m_contactStart);
+    if(sojourn < m_options.codelTarget || m_sendQueue.getBytes() <= m_options.mtu) {
+        m_isCodelAbove = false;
+        m_isCodelDropping = false;
+        return false;
+    }
+    if(!m_isCodelAbove) {
+        m_isCodelAbove = true;
+        m_codelFirstAbove = now + m_options.codelInterval;
+        return false;
+    }
+    if(now < m_codelFirstAbove)
+        return false;
+
+    if(!m_isCodelDropping) {
+        m_isCodelDropping = true;
+        m_codelCount = 1;
+    } else if(now < m_codelDropNext)
+        return false;
+    else
+        m_codelCount++;
+    m_codelDropNext = now + time::duration_cast<time::steady_clock::Duration>(
+        m_options.codelInterval / std::sqrt(static_cast<double>(m_codelCount)));
+
+    m_droppedCount++;
+    m_droppedBytes += packet.packet.packet.size();
+    release(packet);
+    NFD_LOG_DEBUG("Dropping packet which waited " << time::duration_cast<time::milliseconds>(sojourn) << ".");
+    return true;
+}
+
+// Forgets the persisted copy of a packet which left the queue for good.
+void OppTransport::release(const QueuedPacket& packet) {
+    if(m_log != nullptr && packet.logRecord != 0)
+        m_log->consume(packet.logRecord);
+}
+
+// Reads back the packets waiting in the log, oldest first, while the packets queued in memory leave room for them.
+void OppTransport::refillFromLog() {
+    while(!m_spilled.empty() && m_sendQueue.getBytes() < m_options.memoryQueueBytes) {
+        OppPacketLog::Record record = m_spilled.front().record;
+        unspill(m_spilled.begin());
+
+        QueuedPacket queued;
+        try {
+            queued.packet = Packet(m_log->read(record.id));
+        } catch (const ndn::tlv::Error& e) {
+            NFD_LOG_WARN("Discarding unreadable packet from the log : " << e.what());
+            m_log->consume(record.id);
+            continue;
+        }
+        queued.deadline = toSteadyTime(record.deadline);
+        queued.trafficClass = m_sendQueue.classify(queued.packet.packet);
+        queued.enqueued = time::steady_clock::now();
+        queued.logRecord = record.id;
+        m_sendQueue.enqueue(std::move(queued));
+    }
+}
+
+// Appends a packet to those waiting in the log.
+void OppTransport::spill(const OppPacketLog::Record& record, const OppSendQueue::InterestKeys& keys) {
+    SpilledIterator spilled = m_spilled.insert(m_spilled.end(), SpilledPacket{record, keys});
+    if(keys.hasNonce)
+        m_spilledNonces[keys.nonce] = spilled;
+    if(keys.hasInterestKey)
+        m_spilledInterests.emplace(keys.interestKey, spilled);
+    m_spilledBytes += record.size;
+}
+
+// Forgets a packet waiting in the log, without consuming its record. Returns the packet which followed it.
+OppTransport::SpilledIterator OppTransport::unspill(SpilledIterator spilled) {
+    if(spilled->keys.hasNonce) {
+        auto nonce = m_spilledNonces.find(spilled->keys.nonce);
+        if(nonce != m_spilledNonces.end() && nonce->second == spilled)
+            m_spilledNonces.erase(nonce);
+    }
+    if(spilled->keys.hasInterestKey) {
+        auto range = m_spilledInterests.equal_range(spilled->keys.interestKey);
+        for(auto it = range.first; it != range.second; ++it) {
+            if(it->second == spilled) {
+                m_spilledInterests.erase(it);
+                break;
+            }
+        }
+    }
+    m_spilledBytes -= spilled->record.size;
+    return m_spilled.erase(spilled);
+}
+
+// Ends the stall in progress, if any, and cancels the pending retry.
+void OppTransport::resetRetries() {
+    m_retryEvent.cancel();
+    m_isRetryScheduled = false;
+    if(m_consecutiveFailures > 0) {
+        m_stallTime += time::steady_clock::now() - m_stallStart;
+        m_consecutiveFailures = 0;
+    }
+}
+
+// Completions are cumulative: a successful completion also acknowledges every packet sent before it. A completion
+// which does not match any packet in flight is a leftover from a previous contact, or follows a failure of the same
+// batch which already put its packets back in the queue; it only frees its room in the ring.
+void OppTransport::onSendComplete(uint64_t sequence, bool succeeded) {
+    NFD_LOG_INFO("onSendComplete " << sequence << ". Succeeded ? " << succeeded);
+
+    // Whatever the outcome, the channel is done reading the packet from the ring.
+    releaseRing(sequence);
+
+    if(m_inFlight.empty() || sequence < m_inFlight.front().sequence || sequence > m_inFlight.back().sequence) {
+        NFD_LOG_DEBUG("Ignoring stale completion " << sequence);
+        if(succeeded)
+            sendNextPacket();
+        return;
+    }
 
     if(succeeded) {
-        m_sendQueue.pop_front();
+        if(m_consecutiveFailures > 0) {
+            m_stallTime += time::steady_clock::now() - m_stallStart;
+            m_consecutiveFailures = 0;
+        }
+        while(!m_inFlight.empty() && m_inFlight.front().sequence <= sequence) {
+            // The packet, and its record in the log, are kept until the peer acknowledges it.
+            if(m_reliability != nullptr)
+                m_reliability->onWritten(m_inFlight.front().queued.txSequence,
+                                         std::move(m_inFlight.front().queued.packet),
+                                         m_inFlight.front().queued.deadline,
+                                         m_inFlight.front().queued.trafficClass,
+                                         m_inFlight.front().queued.logRecord);
+            else
+                release(m_inFlight.front().queued);
+            m_inFlight.pop_front();
+        }
+        releaseAcknowledged();
         sendNextPacket();
-    } else NFD_LOG_DEBUG("Packet sending failed.");
+    } else {
+        NFD_LOG_DEBUG("Packet sending failed.");
+        onSendFailed();
+    }
 }
 
 void OppTransport::doSend(Packet&& packet) {
     NFD_LOG_INFO("doSend " << getFace()->getId());
 
-    //if(packet.packet.type() == ndn::tlv::Interest)
-        m_sendQueue.push_back(packet);
-    //else if (packet.packet.type() == ndn::tlv::Data)
-    //    m_dataQueue.push_back(packet);
+    if(isCoveredByGroup(packet.packet)) {
+        NFD_LOG_DEBUG("Packet delivered to the peer by the group Face. Not sending.");
+        return;
+    }
+
+    // Within its traffic class, a whole packet, such as an Interest, is inserted ahead of the fragments still queued
+    // so that it does not wait behind a large Data.
+    QueuedPacket queued;
+    queued.deadline = getDeadline(packet.packet);
+    queued.trafficClass = m_sendQueue.classify(packet.packet);
+    queued.enqueued = time::steady_clock::now();
+    queued.packet = std::move(packet);
+
+    // A retransmitted or duplicated Interest replaces those asking for the same Data which still wait, in memory or
+    // in the log, so that a single one is sent once the contact resumes.
+    std::vector<uint64_t> superseded;
+    m_sendQueue.removeSuperseded(queued.packet.packet, superseded);
+    OppSendQueue::InterestKeys keys = OppSendQueue::getInterestKeys(queued.packet.packet);
+    if(keys.hasInterestKey && !m_spilled.empty()) {
+        std::vector<SpilledIterator> spilled;
+        auto range = m_spilledInterests.equal_range(keys.interestKey);
+        for(auto it = range.first; it != range.second; ++it)
+            spilled.push_back(it->second);
+        for(SpilledIterator waiting : spilled) {
+            superseded.push_back(waiting->record.id);
+            unspill(waiting);
+        }
+    }
+    if(!superseded.empty()) {
+        NFD_LOG_DEBUG("Interest supersedes " << superseded.size() << " queued ones");
+        for(uint64_t logRecord : superseded)
+            if(m_log != nullptr && logRecord != 0)
+                m_log->consume(logRecord);
+    }
+
+    // Every packet is persisted. Once the memory allowance is used, packets only wait in the log, except for the most
+    // urgent ones; those which follow a packet waiting in the log also wait there, to keep their order.
+    bool isSpilled = false;
+    if(m_log != nullptr) {
+        OppPacketLog::Record record = m_log->append(queued.packet.packet, toSystemTime(queued.deadline));
+        queued.logRecord = record.id;
+        if(record.id == 0)
+            NFD_LOG_DEBUG("Log full. Keeping packet in memory only.");
+        else if(!m_sendQueue.isTopPriority(queued.trafficClass)
+                && (!m_spilled.empty() || m_sendQueue.getBytes() >= m_options.memoryQueueBytes)) {
+            spill(record, keys);
+            isSpilled = true;
+        }
+    }
+    if(!isSpilled)
+        m_sendQueue.enqueue(std::move(queued));
+    enforceBudgets();
+    scheduleSweep();
 
     TransportState currently = this->getState();
-    if(currently == TransportState::UP && m_sendQueue.size() == 1) {
+    if(currently == TransportState::UP && m_inFlight.size() < m_options.window) {
         NFD_LOG_INFO("Transport is UP. Sending.");
         sendNextPacket();
     } else if(currently == TransportState::DOWN)
         NFD_LOG_INFO("Transport is DOWN. Queuing.");
 }
 
-void OppTransport::handleReceive(const uint8_t *buffer, size_t buf_size) {
-    NFD_LOG_DEBUG("Received: " << buf_size << " bytes");
+// The buffer holds one or more complete packets laid out back-to-back. Each Block shares the buffer; no copy occurs.
+void OppTransport::handleReceive(const ndn::ConstBufferPtr& buffer) {
+    NFD_LOG_DEBUG("Received: " << buffer->size() << " bytes");
 
-    bool isOk = true;
-    Block element(buffer, buf_size);
-    NFD_LOG_DEBUG("Performing actual receive of a Block of " << element.size() << " bytes");
-    this->receive(Transport::Packet(std::move(element)));
+    size_t offset = 0;
+    while(offset < buffer->size()) {
+        bool isOk = false;
+        Block element;
+        std::tie(isOk, element) = Block::fromBuffer(buffer, offset);
+        if(!isOk) {
+            NFD_LOG_WARN("Failed to parse incoming packet at offset " << offset);
+            return;
+        }
+        offset += element.size();
+        // The sequence number and the Acks are consumed here; the link service only sees the rest of the packet.
+        if(m_reliability != nullptr && !m_reliability->processReceived(element))
+            continue;
+        NFD_LOG_DEBUG("Performing actual receive of a Block of " << element.size() << " bytes");
+        this->receive(Transport::Packet(std::move(element)));
+    }
+    releaseAcknowledged();
+    scheduleAck();
 }
 
 void OppTransport::afterChangePersistency(ndn::nfd::FacePersistency oldP) {
@@ -1,37 +1,257 @@
 #ifndef COPELABS_NFD_ANDROID_OPP_TRANSPORT_HPP
 #define COPELABS_NFD_ANDROID_OPP_TRANSPORT_HPP
 
+#include <algorithm>
 #include <deque>
+#include <list>
+#include <set>
+#include <unordered_map>
+#include <vector>
 
 #include "daemon/face/transport.hpp"
+#include "opp-packet-log.hpp"
+#include "opp-reliability.hpp"
+#include "opp-send-queue.hpp"
+#include "opp-socket-link.hpp"
+
+#include "core/scheduler.hpp"
 
 // From nfd-jni.cpp
-void performSend(long, ndn::Block);
+bool performSend(long, uint64_t, size_t, size_t, size_t, bool);
 
 namespace nfd {
 namespace face {
 
+// State of the group Face, shared by all the OppTransports created by the OppFactory.
+struct OppGroupState {
+    // Whether the group Face is UP, and the subnet it broadcasts to, from oppmc://<broadcast>:<port>/<prefix length>.
+    // Its transmissions then reach the peers in that subnet; with no prefix length, no peer is known to be a member.
+    bool isUp = false;
+    std::string broadcastAddress;
+    size_t prefixLength = 0;
+    // Packets under these prefixes are delivered to the peers of the group by the group Face alone.
+    std::vector<Name> prefixes{Name("/ndn/multicast"), Name("/emergency")};
+};
+
+class OppTransport;
+
+// Bytes queued by all the OppTransports created by the OppFactory, which share a global budget.
+struct OppQueueBudget {
+    // Maximum number of bytes queued by all the OppTransports together; 0 for no limit.
+    size_t capacity = 0;
+    std::set<OppTransport*> transports;
+};
+
+// Which packets are dropped when a queue exceeds its budget.
+enum class OppDropPolicy {
+    // The newest packet of the least urgent traffic class.
+    TAIL,
+    // The oldest packet of the least urgent traffic class.
+    HEAD,
+    // Like HEAD, and packets are also dropped at the head of the queue while they keep waiting too long during a
+    // contact, like CoDel does.
+    CODEL
+};
+
 // The OppTransport implements the logic of queueing and sending out packets based on whether the corresponding neighbor peer
 // is within transmission range or not.
 class OppTransport : public Transport {
 public:
-    OppTransport(const FaceUri& uri);
+    struct Options {
+        // Maximum number of packets handed to the OpportunisticChannel without their completion being notified.
+        size_t window = 1;
+        // Maximum number of packets and bytes handed to the OpportunisticChannel in a single call.
+        size_t batchPackets = 1;
+        size_t batchBytes = ndn::MAX_NDN_PACKET_SIZE;
+        // Size of the ring shared with the OpportunisticChannel through which outgoing packets are handed.
+        size_t ringBytes = 262144;
+        // When set, packets are written by the OppTransport itself to a TCP connection to the peer instead of being
+        // handed to the OpportunisticChannel.
+        bool nativeSockets = false;
+        // Whether the Faces of the peers are in datagram mode, like opp://<uuid>/udp Faces. In datagram mode, packets up
+        // to the threshold are sent as UDP datagrams rather than over TCP. A lost datagram is never reported as failed,
+        // so datagram mode is only used with reliability.
+        bool datagrams = false;
+        size_t datagramThreshold = 1400;
+        // MTU advertised to the GenericLinkService, which fragments the larger packets.
+        size_t mtu = ndn::MAX_NDN_PACKET_SIZE;
+        // When set, packets carry sequence numbers acknowledged by the peer, and the packets not acknowledged by the
+        // end of a contact are sent again at the next one.
+        bool reliability = false;
+        // In native sockets mode, whether the Names of the packets are coded against those recently written on the
+        // same connection, provided the peer accepts it.
+        bool nameCodec = false;
+        // Delay before the first retry after a failed send; it doubles after each consecutive failure up to the maximum.
+        time::milliseconds retryDelay = time::milliseconds(250);
+        time::milliseconds maxRetryDelay = time::milliseconds(30000);
+        // Number of failed sends after which a packet is dropped.
+        size_t retryBudget = 8;
+        // Number of failed sends after which the packet at the head of the queue is moved to its back; 0 to never.
+        size_t skipAfter = 3;
+        // Longest time a packet is kept in the queue, on top of its InterestLifetime or FreshnessPeriod; 0 for no limit.
+        time::milliseconds carryTime = time::milliseconds::zero();
+        // Traffic classes the outgoing packets are sorted into; none puts all the packets in a single queue.
+        std::vector<OppTrafficClass> trafficClasses;
+        // Part of the window kept for the classes with the lowest priority value, which the other classes never use.
+        size_t reservedWindow = 0;
+        // Maximum number of bytes queued by the Face; 0 for no limit.
+        size_t queueBytes = 0;
+        OppDropPolicy dropPolicy = OppDropPolicy::TAIL;
+        // With the CODEL policy, the longest time packets may wait during a contact, and how long they may exceed it
+        // before the dropping starts.
+        time::milliseconds codelTarget = time::milliseconds(500);
+        time::milliseconds codelInterval = time::milliseconds(5000);
+        // Directory under which the packets queued for each peer are persisted; empty to keep them in memory only.
+        std::string logDirectory;
+        size_t logSegmentBytes = 1048576;
+        // Maximum number of bytes persisted for each peer; packets are dropped once it is reached.
+        size_t logBytes = 67108864;
+        // With persistence, bytes of queued packets kept in memory; the others are read back as the queue drains.
+        size_t memoryQueueBytes = 1048576;
+    };
+
+    OppTransport(const FaceUri& uri, const Options& options = Options(), shared_ptr<OppGroupState> group = nullptr,
+                 shared_ptr<OppQueueBudget> budget = nullptr);
+    ~OppTransport();
     void commuteState(TransportState newState);
-    void handleReceive(const uint8_t *buffer, size_t buf_size);
+    void handleReceive(const ndn::ConstBufferPtr& buffer);
     void sendNextPacket();
-    void onSendComplete(bool succeeded);
+    void onSendComplete(uint64_t sequence, bool succeeded);
 
     int getQueueSize();
     void removePacket(uint32_t nonce);
+    uint64_t getRetryCount() const;
+    time::milliseconds getStallTime() const;
+    uint64_t getExpiredBytes() const;
+    size_t getQueuedBytes() const;
+    // Maximum number of bytes queued by the Face; 0 for no limit.
+    size_t getQueueBudget() const;
+    uint64_t getDroppedCount() const;
+    uint64_t getDroppedBytes() const;
+    void trimQueue(double keep);
+
+    // The ring is shared with the OpportunisticChannel, which may still read it after this OppTransport is destroyed.
+    // Null in native sockets mode.
+    shared_ptr<ndn::Buffer> getRing() const;
+
+    bool usesNativeSockets() const;
+    // Sets the address of the peer, as resolved when its Face is brought UP.
+    void setPeerHost(const std::string& host);
+    void setEndpoint(const std::string& host, uint16_t port, const std::string& localUuid);
+    void clearEndpoint();
 
 private:
     virtual void doClose() override;
     virtual void doSend(Packet&& packet) override;
     virtual void afterChangePersistency(ndn::nfd::FacePersistency oldP) override;
 
+    typedef OppQueuedPacket QueuedPacket;
+
+    // A packet waiting in the OppPacketLog, with the keys under which it is indexed.
+    struct SpilledPacket {
+        OppPacketLog::Record record;
+        OppSendQueue::InterestKeys keys;
+    };
+    typedef std::list<SpilledPacket>::iterator SpilledIterator;
+
+    bool isDatagram(const QueuedPacket& packet) const;
+    size_t getWireSize(const QueuedPacket& packet) const;
+    Block prepareForSending(QueuedPacket& packet);
+    bool isCoveredByGroup(const Block& packet) const;
+    bool isGroupMember() const;
+    bool isWindowOpen(const QueuedPacket& packet) const;
+    void requeueInFlight();
+    void onSendFailed();
+    void resetRetries();
+    time::steady_clock::TimePoint getDeadline(const Block& packet) const;
+    bool dropIfExpired(const QueuedPacket& packet, const time::steady_clock::TimePoint& now);
+    void scheduleSweep();
+    void sweepExpired();
+    void enforceBudgets();
+    bool dropForBudget();
+    bool dropFromMemory();
+    bool dropIfLate(const QueuedPacket& packet, const time::steady_clock::TimePoint& now);
+    void release(const QueuedPacket& packet);
+    void refillFromLog();
+    void spill(const OppPacketLog::Record& record, const OppSendQueue::InterestKeys& keys);
+    SpilledIterator unspill(SpilledIterator spilled);
+    void requeueUnacknowledged();
+    void releaseAcknowledged();
+    void scheduleAck();
+    void writeToRing(const Block& packet);
+    void releaseRing(uint64_t sequence);
+
 private:
-    std::deque<Packet> m_sendQueue;
-    std::deque<Packet> m_dataQueue;
+    // A packet that was handed to the OpportunisticChannel and whose transmission has not completed yet.
+    struct InFlightPacket {
+        uint64_t sequence;
+        QueuedPacket queued;
+    };
+
+    Options m_options;
+    // Packets up to this size are sent as datagrams; 0 when the Face only uses TCP.
+    size_t m_datagramThreshold = 0;
+    // Whether this is the group Face (oppmc://) rather than the Face of a single peer.
+    bool m_isGroup = false;
+    shared_ptr<OppGroupState> m_group;
+    // Address of the peer; empty until its Face is first brought UP.
+    std::string m_peerHost;
+    OppSendQueue m_sendQueue;
+    std::deque<InFlightPacket> m_inFlight;
+    uint64_t m_nextSequence = 0;
+
+    // Outgoing packets are copied back-to-back into the ring from which the OpportunisticChannel reads them.
+    // The bytes of a packet remain reserved until the channel notifies the completion of that packet, even if
+    // the packet was requeued in the meantime, since the channel may still be reading them.
+    shared_ptr<ndn::Buffer> m_ring;
+    size_t m_ringHead = 0;
+    size_t m_ringUsed = 0;
+    std::deque<std::pair<uint64_t, size_t>> m_ringReservations;
+
+    // Connection to the peer used in native sockets mode; set while the peer is reachable.
+    shared_ptr<OppSocketLink> m_link;
+
+    // Failed sends are retried with an exponential backoff, reset by the next successful send or contact.
+    scheduler::ScopedEventId m_retryEvent;
+    bool m_isRetryScheduled = false;
+    size_t m_consecutiveFailures = 0;
+    // Statistics; the time spent stalled accumulates from a failure until the next successful send.
+    uint64_t m_retryCount = 0;
+    time::steady_clock::Duration m_stallTime = time::steady_clock::Duration::zero();
+    time::steady_clock::TimePoint m_stallStart;
+
+    // Expired packets are dropped when they reach the head of the queue, and periodically by a sweeper.
+    scheduler::ScopedEventId m_sweepEvent;
+    bool m_isSweepScheduled = false;
+    uint64_t m_expiredCount = 0;
+    uint64_t m_expiredBytes = 0;
+
+    // Packets are dropped to keep the queue within the budgets of the Face and of all the Faces.
+    shared_ptr<OppQueueBudget> m_budget;
+    uint64_t m_droppedCount = 0;
+    uint64_t m_droppedBytes = 0;
+    // State of the CODEL policy. Packets queued before the current contact wait from its start.
+    time::steady_clock::TimePoint m_contactStart;
+    bool m_isCodelAbove = false;
+    time::steady_clock::TimePoint m_codelFirstAbove;
+    bool m_isCodelDropping = false;
+    time::steady_clock::TimePoint m_codelDropNext;
+    size_t m_codelCount = 0;
+
+    // Packets persisted for the peer; null when persistence is disabled or the log could not be opened. The packets
+    // which did not fit in memory wait in the log, in their order of arrival. They are indexed like the packets queued
+    // in memory, so that they are removed alike, and count towards the budgets.
+    unique_ptr<OppPacketLog> m_log;
+    std::list<SpilledPacket> m_spilled;
+    std::unordered_map<uint32_t, SpilledIterator> m_spilledNonces;
+    std::unordered_multimap<uint64_t, SpilledIterator> m_spilledInterests;
+    size_t m_spilledBytes = 0;
+
+    // Sequence numbers and acknowledgements exchanged with the peer; null when reliability is disabled.
+    unique_ptr<OppReliability> m_reliability;
+    // Acks are sent on their own if no outgoing packet carries them shortly.
+    scheduler::ScopedEventId m_ackEvent;
+    bool m_isAckScheduled = false;
 };
 
 } // namespace face
@@ -9,6 +9,7 @@
 
 #include "daemon/face/face-system.hpp"
 #include "daemon/face/opp-factory.hpp"
+#include "daemon/face/opp-push-engine.hpp"
 #include "daemon/face/protocol-factory.hpp"
 
 #include "daemon/mgmt/fib-manager.hpp"
@@ -69,6 +70,13 @@ void Nfd::initialize() {
 
 	tablesConfig.ensureConfigured();
 
+	NFD_LOG_INFO("Creating the push engine of the opp faces.");
+	face::OppPushEngine::Options pushOptions;
+	auto oppFactory = m_faceManager->m_faceSystem.m_factories.find(OppFactory::getId());
+	if(oppFactory != m_faceManager->m_faceSystem.m_factories.end())
+		pushOptions = static_cast<OppFactory*>(oppFactory->second.get())->getPushOptions();
+	m_pushEngine.reset(new face::OppPushEngine(m_forwarder.getCs(), faceTable, m_keyChain, pushOptions));
+
 	NFD_LOG_INFO("Registering /localhost/nfd for RIB service.");
 	Name topPrefix("/localhost/nfd");
 	m_forwarder.getFib().insert(topPrefix).first->addNextHop(*m_internalFace, 0);
@@ -94,15 +102,16 @@ void Nfd::createFace(std::string& faceUri, ndn::nfd::FacePersistency persistency
 		return;
 	}
 
-	auto factory = m_faceManager->m_faceSystem.m_factories.find(uri.getScheme());
-	if (factory == m_faceManager->m_faceSystem.m_factories.end()) {
+	// Factories are registered by id; the schemes each one provides (e.g. opp and oppmc) are mapped separately.
+	ProtocolFactory* factory = m_faceManager->m_faceSystem.getFactoryByScheme(uri.getScheme());
+	if (factory == nullptr) {
 		NFD_LOG_INFO("Unsupported protocol");
 		return;
 	}
 
 	NFD_LOG_INFO("Valid parameters and factory found. Attempting creation.");
 	try {
-		factory->second->createFace(uri, persistency, localFields,
+		factory->createFace(uri, persistency, localFields,
 				bind(&Nfd::afterCreateFaceSuccess, this, localFields, _1),
 				bind(&Nfd::afterCreateFaceFailure, this, _1, _2));
 	}
@@ -130,6 +139,10 @@ void Nfd::destroyFace(FaceId id) {
 		face->close();
 }
 
+bool Nfd::pushData(FaceId id, const Name& prefix) {
+	return m_pushEngine != nullptr && m_pushEngine->push(id, prefix);
+}
+
 Forwarder& Nfd::getForwarder() {
     return m_forwarder;
 }
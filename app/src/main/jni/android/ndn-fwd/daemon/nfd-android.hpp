@@ -19,6 +19,10 @@
 
 namespace nfd {
 
+namespace face {
+class OppPushEngine;
+} // namespace face
+
 class Nfd : noncopyable {
 public:
 	Nfd(ConfigSection& config);
@@ -31,6 +35,8 @@ public:
     void afterCreateFaceSuccess(bool localFields, const shared_ptr<Face>& face);
     void afterCreateFaceFailure(uint32_t status, const std::string& reason);
     void destroyFace(FaceId id);
+    // Pushes the Data of the Content Store under a prefix to an opp:// Face which is UP.
+    bool pushData(FaceId id, const Name& prefix);
 
     Forwarder& getForwarder();
 	NameTree& getNameTree();
@@ -53,6 +59,8 @@ private:
 	shared_ptr<ndn::Face> m_internalClientFace;
 	shared_ptr<ndn::mgmt::Dispatcher> m_dispatcher;
 	shared_ptr<nfd::CommandAuthenticator> m_authenticator;
+
+	unique_ptr<face::OppPushEngine> m_pushEngine;
 };
 
 } // namespace nfd
@@ -45,6 +45,8 @@ namespace nfd {
 
 static std::unique_ptr<nfd::Nfd> g_nfd;
 static std::unique_ptr<nfd::rib::Service> g_nrd;
+// UUID of the local device, announced by the OppTransports when they connect to a peer.
+static std::string g_localUuid;
 
 JavaVM* g_vm;
 jobject forwardingDaemonInstance;
@@ -79,6 +81,7 @@ static jmethodID newCsEntry;
 
 static jclass cls_opp_channel;
 static jmethodID mth_send;
+static jmethodID mth_attach_ring;
 
 void initializeLogging(nfd::ConfigSection& cfg) {
 	nfd::ConfigFile config(&nfd::ConfigFile::ignoreUnknownSection);
@@ -98,10 +101,22 @@ std::string convertString(JNIEnv* env, jstring input) {
 jobject constructFace(JNIEnv* env, const nfd::Face& current) {
     std::string remoteUri = current.getRemoteUri().toString();
     int queueSize = -1;
-    // If this is an opportunistic face, get the queueSize.
+    jlong retries = 0;
+    jlong stallTime = 0;
+    jlong expiredBytes = 0;
+    jlong queuedBytes = 0;
+    jlong droppedPackets = 0;
+    jlong droppedBytes = 0;
+    // If this is an opportunistic face, get the queueSize, the retry and the drop statistics.
     if(remoteUri.compare(0, 6, "opp://") == 0) {
         nfd::face::OppTransport* oppTransport = (nfd::face::OppTransport*) current.getTransport();
         queueSize = oppTransport->getQueueSize();
+        retries = oppTransport->getRetryCount();
+        stallTime = oppTransport->getStallTime().count();
+        expiredBytes = oppTransport->getExpiredBytes();
+        queuedBytes = oppTransport->getQueuedBytes();
+        droppedPackets = oppTransport->getDroppedCount();
+        droppedBytes = oppTransport->getDroppedBytes();
     }
 
     return env->NewObject(face, newFace,
@@ -111,7 +126,13 @@ jobject constructFace(JNIEnv* env, const nfd::Face& current) {
                                 (int) current.getPersistency(),
                                 (int) current.getLinkType(),
                                 (int) current.getState(),
-                                queueSize);
+                                queueSize,
+                                retries,
+                                stallTime,
+                                expiredBytes,
+                                queuedBytes,
+                                droppedPackets,
+                                droppedBytes);
 }
 
 #define PERFORM_ATTACHED(OPERATIONS) {                            \
@@ -149,14 +170,10 @@ void beforePitEntryRemove(const nfd::pit::Entry& entry) {
     }
 }
 
-void beforeOutRecordUpdate(uint32_t nonce) {
-    NFD_LOG_INFO("Update to Out-Record : " << nonce << " will be removed.");
-    // Should remove that packet from the queues.
-}
-
-JNIEXPORT void JNICALL jniStart(JNIEnv* env, jobject fDaemon, jstring homepath, jstring configuration) {
+JNIEXPORT void JNICALL jniStart(JNIEnv* env, jobject fDaemon, jstring homepath, jstring configuration, jstring uuid) {
     // Initialization.
     forwardingDaemonInstance = env->NewGlobalRef(fDaemon);
+    g_localUuid = convertString(env, uuid);
 
     std::string home = convertString(env, homepath);
     ::setenv("HOME", home.c_str(), true);
@@ -179,8 +196,6 @@ JNIEXPORT void JNICALL jniStart(JNIEnv* env, jobject fDaemon, jstring homepath,
     g_nfd->getFaceTable().afterAdd.connect(afterFaceAdd);
     g_nfd->getPendingInterestTable().beforeRemove.connect(beforePitEntryRemove);
 
-    g_nfd->getForwarder().beforeOutRecordUpdate.connect(beforeOutRecordUpdate);
-
     NFD_LOG_INFO("Initializing NFD.");
     g_nfd->initialize();
     NFD_LOG_INFO("Initializing NRD.");
@@ -189,11 +204,16 @@ JNIEXPORT void JNICALL jniStart(JNIEnv* env, jobject fDaemon, jstring homepath,
     // Actual start.
     boost::thread([] {
         NFD_LOG_INFO("Started secondary thread");
+        // The I/O thread performs upcalls into Java for every outgoing batch; attach it once for its whole lifetime.
+        JNIEnv* env;
+        bool attached = (g_vm->AttachCurrentThread(&env, NULL) == 0);
         try {
             nfd::getGlobalIoService().run();
         } catch (const nfd::PrivilegeHelper::Error& e) {
             NFD_LOG_FATAL("PrivilegeHelper: " << e.what());
         }
+        if(attached)
+            g_vm->DetachCurrentThread();
     });
 }
 
@@ -258,96 +278,203 @@ static void jniCreateFace(JNIEnv* env, jobject, jstring uri, jint persistency, j
 
 std::map<long, jobject> m_opportunistic_channels;
 
-void performSend(long faceId, ndn::Block bl) {
+// Signals a batch of packets to the OpportunisticChannel in a single upcall. The packets were copied back-to-back by
+// the OppTransport into its ring, which the channel reads directly; no Java array is allocated.
+bool performSend(long faceId, uint64_t firstSequence, size_t count, size_t start, size_t length, bool datagram) {
+    bool signalled = false;
     PERFORM_ATTACHED(
-        NFD_LOG_INFO("Perform Send from Face : " << faceId << " of " << bl.size() << " bytes.");
+        NFD_LOG_INFO("Perform Send #" << firstSequence << " from Face : " << faceId << " of " << count << " packets, " << length << " bytes.");
         nfd::Face *current = g_nfd->getFaceTable().get(faceId);
-        if(current != nullptr && current->getTransport()->getState() == nfd::face::TransportState::UP) {
-            jobject oppChannel = m_opportunistic_channels.find(faceId)->second;
-            jbyteArray packetBytes = env->NewByteArray(bl.size());
-            if(packetBytes != NULL) {
-                NFD_LOG_INFO("Attempting to map ByteArray region.");
-                env->SetByteArrayRegion(packetBytes, 0, bl.size(), (const jbyte*) bl.wire());
-                NFD_LOG_INFO("Calling actual mth_send.");
-                env->CallVoidMethod(oppChannel, mth_send, packetBytes);
+        auto channel = m_opportunistic_channels.find(faceId);
+        if(current != nullptr && current->getTransport()->getState() == nfd::face::TransportState::UP
+           && channel != m_opportunistic_channels.end()) {
+            jboolean submitted = env->CallBooleanMethod(channel->second, mth_send, (jlong) firstSequence, (jint) count, (jint) start, (jint) length, (jboolean) datagram);
+            // An exception left pending would break the next upcalls from the I/O thread.
+            if(env->ExceptionCheck()) {
+                NFD_LOG_ERROR("OpportunisticChannel.send threw for face #" << faceId);
+                env->ExceptionDescribe();
+                env->ExceptionClear();
             } else
-                NFD_LOG_WARN("Cannot allocate buffer for sending Block.");
+                signalled = submitted;
         }
     );
+    return signalled;
 }
 
-static void jniSendComplete(JNIEnv* env, jobject, jlong faceId, jboolean result) {
+// Completions are notified by the sender threads of the OpportunisticChannels; they are processed on the I/O thread.
+static void jniSendComplete(JNIEnv* env, jobject, jlong faceId, jlong sequence, jboolean result) {
     COFFEE_TRY_JNI(env,
-        if(g_nfd.get() != nullptr) {
+        bool succeeded = result;
+        nfd::getGlobalIoService().post([faceId, sequence, succeeded] {
+            if(g_nfd.get() == nullptr)
+                return;
             nfd::Face *current = g_nfd->getFaceTable().get(faceId);
             if(current != nullptr) {
                 nfd::face::OppTransport* oppTransport = (nfd::face::OppTransport*) current->getTransport();
-                oppTransport->onSendComplete(result);
+                oppTransport->onSendComplete((uint64_t) sequence, succeeded);
             } else
                 NFD_LOG_ERROR("Could not retrieve face #" << faceId);
-        }
+        });
     );
 }
 
-static void jniReceiveOnFace(JNIEnv* env, jobject, jlong faceId, jint receivedBytes, jbyteArray buffer) {
+// The received bytes are read straight from the direct buffer of the receiver and adopted into a single ndn::Buffer
+// shared by all the Blocks delimited within it.
+static void jniReceiveOnFace(JNIEnv* env, jobject, jlong faceId, jobject buffer, jint offset, jint length) {
     COFFEE_TRY_JNI(env,
-        NFD_LOG_DEBUG("Receive on Face " << faceId << " buffer=" << buffer << ", receivedBytes=" << (int) receivedBytes);
-        if(g_nfd.get() != nullptr) {
+        NFD_LOG_DEBUG("Receive on Face " << faceId << " offset=" << (int) offset << ", length=" << (int) length);
+        const uint8_t* received = (const uint8_t*) env->GetDirectBufferAddress(buffer);
+        if(received == nullptr) {
+            NFD_LOG_ERROR("Receive buffer is not a direct buffer.");
+            return;
+        }
+        // Packets may be received by several connections concurrently; the actual reception is
+        // performed on the I/O thread of NFD.
+        ndn::ConstBufferPtr packets = std::make_shared<ndn::Buffer>(received + offset, (size_t) length);
+        nfd::getGlobalIoService().post([faceId, packets] {
+            if(g_nfd.get() == nullptr)
+                return;
             nfd::Face *current = g_nfd->getFaceTable().get(faceId);
             if(current != nullptr) {
-                jbyte* nativeCopy = env->GetByteArrayElements(buffer, 0);
                 NFD_LOG_DEBUG("Passing buffer to face #" << faceId);
                 nfd::face::OppTransport* oppTransport = (nfd::face::OppTransport*) current->getTransport();
-                oppTransport->handleReceive((uint8_t*) nativeCopy, (size_t) receivedBytes);
-                env->ReleaseByteArrayElements(buffer, nativeCopy, 0);
+                oppTransport->handleReceive(packets);
             } else
                 NFD_LOG_ERROR("Could not retrieve face #" << faceId);
-        }
+        });
     );
 }
 
-static void jniBringUpFace(JNIEnv* env, jobject, jlong faceId, jobject oppChannel) {
+// Called by the OpportunisticChannel once it no longer reads the ring attached to it. The ring is freed here if the
+// OppTransport which wrote into it is already gone.
+static void jniReleaseRing(JNIEnv* env, jobject, jlong handle) {
     COFFEE_TRY_JNI(env,
-        if(g_nfd.get() != nullptr) {
-            nfd::Face* current = g_nfd->getFaceTable().get(faceId);
-            if(current != nullptr) {
-                nfd::face::OppTransport* oppT = (nfd::face::OppTransport*) current->getTransport();
-                if(oppT->getState() == nfd::face::TransportState::DOWN) {
-                    // Associate faceId to oppChannel so that it is used when OppTransport sends.
-                    // Also when a packet is received it should be passed through that Transport.
-                    NFD_LOG_INFO("Associating OppChannel to face #" << faceId);
-                    m_opportunistic_channels[faceId] = env->NewGlobalRef(oppChannel);
-                    NFD_LOG_INFO("Commuting transport state of face #" << faceId << " to UP.");
-                    oppT->commuteState(nfd::face::TransportState::UP);
+        delete (std::shared_ptr<ndn::Buffer>*) handle;
+    );
+}
+
+void releaseChannel(jobject oppChannel) {
+    PERFORM_ATTACHED(
+        env->DeleteGlobalRef(oppChannel);
+    );
+}
+
+static void jniBringUpFace(JNIEnv* env, jobject, jlong faceId, jobject oppChannel, jstring host, jint port) {
+    COFFEE_TRY_JNI(env,
+        jobject channel = env->NewGlobalRef(oppChannel);
+        std::string peerHost = convertString(env, host);
+        nfd::getGlobalIoService().post([faceId, channel, peerHost, port] {
+            bool attached = false;
+            if(g_nfd.get() != nullptr) {
+                nfd::Face* current = g_nfd->getFaceTable().get(faceId);
+                if(current != nullptr) {
+                    nfd::face::OppTransport* oppT = (nfd::face::OppTransport*) current->getTransport();
+                    if(oppT->getState() == nfd::face::TransportState::DOWN) {
+                        // Associate faceId to oppChannel so that it is used when OppTransport sends.
+                        // Also when a packet is received it should be passed through that Transport.
+                        NFD_LOG_INFO("Associating OppChannel to face #" << faceId);
+                        m_opportunistic_channels[faceId] = channel;
+                        attached = true;
+                        // The channel holds its own reference to the ring, which it releases once its last
+                        // transmission is over; the Face may be destroyed before that.
+                        std::shared_ptr<ndn::Buffer> ring = oppT->getRing();
+                        if(ring != nullptr) {
+                            PERFORM_ATTACHED(
+                                jobject buffer = env->NewDirectByteBuffer(ring->buf(), (jlong) ring->size());
+                                env->CallVoidMethod(channel, mth_attach_ring, buffer, (jlong) new std::shared_ptr<ndn::Buffer>(ring));
+                                env->DeleteLocalRef(buffer);
+                            );
+                        }
+                        oppT->setPeerHost(peerHost);
+                        // In native sockets mode, the transport connects to the peer by itself.
+                        if(oppT->usesNativeSockets())
+                            oppT->setEndpoint(peerHost, (uint16_t) port, g_localUuid);
+                        NFD_LOG_INFO("Commuting transport state of face #" << faceId << " to UP.");
+                        oppT->commuteState(nfd::face::TransportState::UP);
+                    }
                 }
             }
-        }
+            if(!attached)
+                releaseChannel(channel);
+        });
     );
 }
 
 static void jniBringDownFace(JNIEnv* env, jobject, jlong faceId) {
     COFFEE_TRY_JNI(env,
-        if(g_nfd.get() != nullptr) {
+        nfd::getGlobalIoService().post([faceId] {
+            if(g_nfd.get() == nullptr)
+                return;
             nfd::Face* current = g_nfd->getFaceTable().get(faceId);
             if(current != nullptr) {
                 nfd::face::OppTransport* oppT = (nfd::face::OppTransport*) current->getTransport();
                 if(oppT->getState() == nfd::face::TransportState::UP) {
                     NFD_LOG_INFO("Commuting transport state of face #" << faceId << " to DOWN.");
                     oppT->commuteState(nfd::face::TransportState::DOWN);
+                    oppT->clearEndpoint();
                     NFD_LOG_INFO("Detaching OppChannel from face #" << faceId);
-                    jobject oppChannel = m_opportunistic_channels.find(faceId)->second;
-                    env->DeleteGlobalRef(oppChannel);
+                    auto it = m_opportunistic_channels.find(faceId);
+                    if(it != m_opportunistic_channels.end()) {
+                        releaseChannel(it->second);
+                        m_opportunistic_channels.erase(it);
+                    }
                 }
             }
-        }
+        });
     );
 }
 
 static void jniPushData(JNIEnv* env, jobject, jlong faceId, jstring name) {
-    NFD_LOG_INFO("PushData " << name);
-    if(g_nfd.get() != nullptr) {
+    COFFEE_TRY_JNI(env,
+        std::string prefix = convertString(env, name);
+        NFD_LOG_INFO("PushData " << prefix << " to face #" << faceId);
+        nfd::getGlobalIoService().post([faceId, prefix] {
+            if(g_nfd.get() == nullptr)
+                return;
+            try {
+                g_nfd->pushData(faceId, ndn::Name(prefix));
+            } catch (const ndn::Name::Error& e) {
+                NFD_LOG_ERROR("Invalid prefix " << prefix << " : " << e.what());
+            }
+        });
+    );
+}
 
-    }
+// Levels from android.content.ComponentCallbacks2
+static const int TRIM_MEMORY_RUNNING_MODERATE = 5;
+static const int TRIM_MEMORY_RUNNING_LOW = 10;
+static const int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+static const int TRIM_MEMORY_BACKGROUND = 40;
+static const int TRIM_MEMORY_MODERATE = 60;
+static const int TRIM_MEMORY_COMPLETE = 80;
+
+// Releases part of the memory held by the queues of the OppTransports when the system runs low. The queues of the
+// peers out of range are trimmed first; those of the peers in range are only trimmed when memory is critical.
+static void jniTrimMemory(JNIEnv* env, jobject, jint level) {
+    double keepDown = 1.0;
+    double keepUp = 1.0;
+    if(level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+        keepDown = 0.0;
+        keepUp = 0.5;
+    } else if(level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW)
+        keepDown = 0.25;
+    else if(level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_MODERATE)
+        keepDown = 0.5;
+    else
+        return;
+
+    COFFEE_TRY_JNI(env,
+        nfd::getGlobalIoService().post([level, keepDown, keepUp] {
+            if(g_nfd.get() == nullptr)
+                return;
+            NFD_LOG_INFO("Trimming memory at level " << level);
+            for(const nfd::Face& current : g_nfd->getFaceTable()) {
+                nfd::face::OppTransport* oppTransport = dynamic_cast<nfd::face::OppTransport*>(current.getTransport());
+                if(oppTransport != nullptr)
+                    oppTransport->trimQueue(oppTransport->getState() == nfd::face::TransportState::UP ? keepUp : keepDown);
+            }
+        });
+    );
 }
 
 static void jniDestroyFace(JNIEnv* env, jobject, jlong faceId) {
@@ -472,7 +599,7 @@ static jobject jniGetStrategyChoiceTable(JNIEnv* env, jobject) {
 }
 
 static JNINativeMethod nativeMethods[] = {
-	{ "jniStart", "(Ljava/lang/String;Ljava/lang/String;)V", (void*) jniStart },
+	{ "jniStart", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V", (void*) jniStart },
 	{ "jniStop", "()V", (void*) jniStop },
 
 	{ "jniGetVersion", "()Ljava/lang/String;", (void*) jniGetVersion },
@@ -484,12 +611,14 @@ static JNINativeMethod nativeMethods[] = {
 	{ "jniGetContentStore"              , "()Ljava/util/List;" , (void*) jniGetContentStore },
 
 	{ "jniCreateFace", "(Ljava/lang/String;IZ)V", (void*) jniCreateFace },
-	{ "jniBringUpFace", "(JLpt/ulusofona/copelabs/ndn/android/umobile/OpportunisticChannel;)V", (void*) jniBringUpFace },
+	{ "jniBringUpFace", "(JLpt/ulusofona/copelabs/ndn/android/umobile/OpportunisticChannel;Ljava/lang/String;I)V", (void*) jniBringUpFace },
 	{ "jniBringDownFace", "(J)V", (void*) jniBringDownFace },
 	{ "jniDestroyFace", "(J)V", (void*) jniDestroyFace },
-	{ "jniReceiveOnFace", "(JI[B)V", (void*) jniReceiveOnFace },
+	{ "jniReceiveOnFace", "(JLjava/nio/ByteBuffer;II)V", (void*) jniReceiveOnFace },
 	{ "jniPushData", "(JLjava/lang/String;)V", (void*) jniPushData },
-    { "jniSendComplete", "(JZ)V", (void*) jniSendComplete },
+	{ "jniTrimMemory", "(I)V", (void*) jniTrimMemory },
+    { "jniSendComplete", "(JJZ)V", (void*) jniSendComplete },
+    { "jniReleaseRing", "(J)V", (void*) jniReleaseRing },
 
 	{ "jniAddRoute", "(Ljava/lang/String;JJJJ)V", (void*) jniAddRoute }
 };
@@ -519,7 +648,7 @@ jint JNI_OnLoad(JavaVM* vm, void* reserved) {
 
 		newList = env->GetMethodID(list, "<init>", "()V");
 		newName = env->GetMethodID(name, "<init>", "(Ljava/lang/String;)V");
-		newFace = env->GetMethodID(face, "<init>", "(JLjava/lang/String;IIIII)V");
+		newFace = env->GetMethodID(face, "<init>", "(JLjava/lang/String;IIIIIJJJJJJ)V");
 		newFibEntry = env->GetMethodID(fibEntry, "<init>", "(Ljava/lang/String;)V");
 		newPitEntry = env->GetMethodID(pitEntry, "<init>", "(Ljava/lang/String;)V");
 		newSctEntry = env->GetMethodID(sctEntry, "<init>", "(Ljava/lang/String;Ljava/lang/String;)V");
@@ -532,7 +661,8 @@ jint JNI_OnLoad(JavaVM* vm, void* reserved) {
 		addInRecord  = env->GetMethodID(pitEntry, "addInRecord" , "(JI)V");
 		addOutRecord = env->GetMethodID(pitEntry, "addOutRecord", "(JI)V");
 
-		mth_send = env->GetMethodID(cls_opp_channel, "send", "([B)V");
+		mth_send = env->GetMethodID(cls_opp_channel, "send", "(JIIIZ)Z");
+		mth_attach_ring = env->GetMethodID(cls_opp_channel, "attachRing", "(Ljava/nio/ByteBuffer;J)V");
 	}
 	return JNI_VERSION_1_6;
 }